@@ -0,0 +1,80 @@
+package io.miti.shortstop.model;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestBench {
+  
+  /** The request lines that are parsed. */
+  @Param({"GET /api/sum HTTP/1.1",
+          "GET /api/12/34?name=value&sort=asc&page=3#top HTTP/1.1",
+          "GET /files/some%20dir/a%2Fb%20c.txt?q=%7Efoo HTTP/1.1"})
+  public String line;
+  
+  /** The endpoint of the request line, as it was sent. */
+  private String endpoint = null;
+  
+  /**
+   * Default constructor.
+   */
+  public RequestBench() {
+    super();
+  }
+  
+  /**
+   * Pull the endpoint out of the request line.
+   */
+  @Setup
+  public void setup() {
+    endpoint = line.substring(line.indexOf(' ') + 1, line.lastIndexOf(' '));
+  }
+  
+  /**
+   * Parse a request line.
+   * 
+   * @return the request
+   */
+  @Benchmark
+  public Request parseLine() {
+    return new Request(line);
+  }
+  
+  /**
+   * Parse a request line, then its URL and query parameters.
+   * 
+   * @return the request
+   */
+  @Benchmark
+  public Request parseLineAndParameters() {
+    final Request request = new Request(line);
+    request.parseURLandParameters();
+    return request;
+  }
+  
+  /**
+   * Decode the hex strings in an endpoint.
+   * 
+   * @return the decoded endpoint
+   */
+  @Benchmark
+  public String decode() {
+    return Request.decode(endpoint);
+  }
+}
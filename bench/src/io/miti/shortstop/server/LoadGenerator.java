@@ -0,0 +1,765 @@
+package io.miti.shortstop.server;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import io.miti.shortstop.model.Config;
+import io.miti.shortstop.util.LatencyHistogram;
+
+public final class LoadGenerator {
+  
+  /** The largest latency recorded, in microseconds (10 minutes). */
+  private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toMicros(10L);
+  
+  /** The percentiles in the report. */
+  private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9, 99.99};
+  
+  /** The names of the percentiles in the report. */
+  private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9", "p99.99"};
+  
+  /** The names of the files downloaded, created in the server's file directory. */
+  private static final String[] FILE_NAMES = {"shortstop-load-small.txt", "shortstop-load-large.txt"};
+  
+  /** The sizes of the files downloaded, in bytes. */
+  private static final int[] FILE_SIZES = {2 * 1024, 64 * 1024};
+  
+  /**
+   * The kinds of request sent.
+   */
+  private enum Kind {
+    STATIC("static"), TEMPLATE("template"), MISSING("missing");
+    
+    /** The name used in the report. */
+    private final String label;
+    
+    /**
+     * Constructor.
+     * 
+     * @param label the name used in the report
+     */
+    private Kind(final String label) {
+      this.label = label;
+    }
+  }
+  
+  /** The port of the server. */
+  private int port = 8080;
+  
+  /** The number of requests sent each second. */
+  private int rate = 1000;
+  
+  /** How long requests are sent for (including the warmup), in seconds. */
+  private int duration = 30;
+  
+  /** How long requests are sent before latencies are recorded, in seconds. */
+  private int warmup = 5;
+  
+  /** The number of connections the requests are spread over. */
+  private int connections = 16;
+  
+  /** How long to wait to connect, or for a response, before the request fails, in milliseconds. */
+  private int timeout = 10_000;
+  
+  /** The weights of each kind of request, in the order of Kind. */
+  private int[] weights = {4, 4, 2};
+  
+  /** The file the report is written to. */
+  private String reportName = "load-report.json";
+  
+  /** Whether to send requests to a server that's already running, instead of starting one. */
+  private boolean external = false;
+  
+  /**
+   * One connection, sending its share of the requests on a fixed
+   * schedule.  Each request's latency is measured from when it was
+   * scheduled to be sent, not when it was sent, so time spent waiting
+   * for a slow response to an earlier request is counted (the load
+   * is open-loop, and doesn't suffer from coordinated omission).
+   */
+  private final class Worker extends Thread {
+    
+    /** The time the first request is scheduled, in nanoseconds. */
+    private final long first;
+    
+    /** The time between this worker's requests, in nanoseconds. */
+    private final long interval;
+    
+    /** When latencies start being recorded, in nanoseconds. */
+    private final long measureStart;
+    
+    /** When requests stop being sent, in nanoseconds. */
+    private final long end;
+    
+    /** The number of this worker. */
+    private final int index;
+    
+    /** The latencies of all requests, in microseconds. */
+    private final LatencyHistogram all = new LatencyHistogram(HIGHEST_LATENCY);
+    
+    /** The latencies of each kind of request, in microseconds. */
+    private final LatencyHistogram[] byKind = new LatencyHistogram[Kind.values().length];
+    
+    /** The latencies of the requests that failed, in microseconds. */
+    private final LatencyHistogram failed = new LatencyHistogram(HIGHEST_LATENCY);
+    
+    /** The number of responses with each class of status (1xx to 5xx). */
+    private final long[] statuses = new long[6];
+    
+    /** The number of requests that failed (connection errors, timeouts and bad responses). */
+    private long errors = 0L;
+    
+    /** The connection, or null if it must be opened. */
+    private Socket socket = null;
+    
+    /** The stream the responses are read from. */
+    private InputStream in = null;
+    
+    /** The stream the requests are written to. */
+    private OutputStream out = null;
+    
+    /** Whether the server asked to close the connection after the last response. */
+    private boolean closing = false;
+    
+    /** When the last response was read, in nanoseconds. */
+    private long finished = 0L;
+    
+    /**
+     * Constructor.
+     * 
+     * @param index the number of this worker
+     * @param first the time the first request is scheduled
+     * @param interval the time between requests
+     * @param measureStart when latencies start being recorded
+     * @param end when requests stop being sent
+     */
+    private Worker(final int index, final long first, final long interval,
+                   final long measureStart, final long end) {
+      super("shortstop-load-" + (index + 1));
+      this.index = index;
+      this.first = first;
+      this.interval = interval;
+      this.measureStart = measureStart;
+      this.end = end;
+      for (int i = 0; i < byKind.length; ++i) {
+        byKind[i] = new LatencyHistogram(HIGHEST_LATENCY);
+      }
+    }
+    
+    /**
+     * Send the requests.
+     */
+    @Override
+    public void run() {
+      for (long num = 0L; ; ++num) {
+        // Wait until the request is due
+        final long intended = first + (num * interval);
+        if (intended >= end) {
+          break;
+        }
+        long delay = intended - System.nanoTime();
+        while (delay > 0L) {
+          LockSupport.parkNanos(delay);
+          delay = intended - System.nanoTime();
+        }
+        
+        // Send it (the kinds are interleaved across all the workers)
+        final long seq = (num * connections) + index;
+        final Kind kind = chooseKind(seq);
+        final int status = send(makePath(kind, seq));
+        final long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended);
+        if (intended < measureStart) {
+          continue;
+        }
+        
+        // Record the result; a failed request's latency is kept apart,
+        // so a server that drops connections doesn't look faster
+        if (status < 0) {
+          ++errors;
+          failed.record(latency);
+        } else {
+          ++statuses[Math.min(5, status / 100)];
+          all.record(latency);
+          byKind[kind.ordinal()].record(latency);
+        }
+      }
+      
+      finished = System.nanoTime();
+      closeConnection();
+    }
+    
+    /**
+     * Send a GET request and read the response, opening a connection
+     * if needed.
+     * 
+     * @param path the path of the request
+     * @return the status code, or -1 if the request failed
+     */
+    private int send(final String path) {
+      try {
+        if (socket == null) {
+          socket = new Socket();
+          socket.setTcpNoDelay(true);
+          socket.setSoTimeout(timeout);
+          socket.connect(new InetSocketAddress("127.0.0.1", port), timeout);
+          in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+          out = socket.getOutputStream();
+        }
+        
+        out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+            .getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        final int status = readResponse();
+        if (closing) {
+          closeConnection();
+        }
+        return status;
+      } catch (IOException ioe) {
+        closeConnection();
+        return -1;
+      }
+    }
+    
+    /**
+     * Read a response, skipping its body.
+     * 
+     * @return the status code
+     * @throws IOException thrown when reading, or if the response is invalid
+     */
+    private int readResponse() throws IOException {
+      // Parse the status code from the status line
+      final String statusLine = readLine();
+      if (!statusLine.startsWith("HTTP/1.") || (statusLine.length() < 12)) {
+        throw new IOException("Invalid status line: " + statusLine);
+      }
+      int status = 0;
+      try {
+        status = Integer.parseInt(statusLine.substring(9, 12));
+      } catch (NumberFormatException nfe) {
+        throw new IOException("Invalid status line: " + statusLine);
+      }
+      
+      // Read the headers that say how long the body is
+      long length = 0L;
+      boolean chunked = false;
+      closing = false;
+      for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+        final int colon = line.indexOf(':');
+        if (colon <= 0) {
+          continue;
+        }
+        final String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+        final String value = line.substring(colon + 1).trim().toLowerCase(Locale.US);
+        if (name.equals("content-length")) {
+          length = Long.parseLong(value);
+        } else if (name.equals("transfer-encoding")) {
+          chunked = value.contains("chunked");
+        } else if (name.equals("connection")) {
+          closing = value.contains("close");
+        }
+      }
+      
+      // Skip the body (there's none for a 304 or a 1xx)
+      if ((status == 304) || (status < 200)) {
+        return status;
+      } else if (!chunked) {
+        skip(length);
+        return status;
+      }
+      
+      for (long size = readChunkSize(); size > 0L; size = readChunkSize()) {
+        skip(size);
+        readLine();
+      }
+      for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+        // Skip the trailers
+      }
+      
+      return status;
+    }
+    
+    /**
+     * Read the size of the next chunk of a chunked body.
+     * 
+     * @return the size
+     * @throws IOException thrown when reading, or if the size is invalid
+     */
+    private long readChunkSize() throws IOException {
+      final String line = readLine();
+      final int semi = line.indexOf(';');
+      try {
+        return Long.parseLong(((semi < 0) ? line : line.substring(0, semi)).trim(), 16);
+      } catch (NumberFormatException nfe) {
+        throw new IOException("Invalid chunk size: " + line);
+      }
+    }
+    
+    /**
+     * Read a line, without its line ending.
+     * 
+     * @return the line
+     * @throws IOException thrown when reading, or at the end of the stream
+     */
+    private String readLine() throws IOException {
+      final StringBuilder sb = new StringBuilder(64);
+      while (true) {
+        final int ch = in.read();
+        if (ch < 0) {
+          throw new EOFException("Connection closed");
+        } else if (ch == '\n') {
+          break;
+        } else if (ch != '\r') {
+          sb.append((char) ch);
+        }
+      }
+      
+      return sb.toString();
+    }
+    
+    /**
+     * Skip bytes in the response.
+     * 
+     * @param count the number of bytes
+     * @throws IOException thrown when reading, or at the end of the stream
+     */
+    private void skip(final long count) throws IOException {
+      long left = count;
+      while (left > 0L) {
+        final long skipped = in.skip(left);
+        if (skipped > 0L) {
+          left -= skipped;
+        } else if (in.read() < 0) {
+          throw new EOFException("Connection closed");
+        } else {
+          --left;
+        }
+      }
+    }
+    
+    /**
+     * Close the connection, if it's open.
+     */
+    private void closeConnection() {
+      if (socket != null) {
+        try {
+          socket.close();
+        } catch (IOException ioe) {
+          // Nothing to do
+        }
+      }
+      socket = null;
+      in = null;
+      out = null;
+    }
+  }
+  
+  /**
+   * Default constructor.
+   */
+  private LoadGenerator() {
+    super();
+  }
+  
+  /**
+   * Parse the arguments, each of the form name=value.
+   * 
+   * @param args the arguments
+   * @return whether they're valid
+   */
+  private boolean parseArgs(final String[] args) {
+    for (String arg : args) {
+      final int eq = arg.indexOf('=');
+      if (eq <= 0) {
+        System.out.println("Invalid argument: " + arg);
+        return false;
+      }
+      
+      final String name = arg.substring(0, eq);
+      final String value = arg.substring(eq + 1);
+      try {
+        if (name.equals("rate")) {
+          rate = Integer.parseInt(value);
+        } else if (name.equals("duration")) {
+          duration = Integer.parseInt(value);
+        } else if (name.equals("warmup")) {
+          warmup = Integer.parseInt(value);
+        } else if (name.equals("connections")) {
+          connections = Integer.parseInt(value);
+        } else if (name.equals("timeout")) {
+          timeout = Integer.parseInt(value);
+        } else if (name.equals("mix")) {
+          final String[] parts = value.split(":");
+          if (parts.length != weights.length) {
+            System.out.println("The mix must have 3 weights (static:template:missing)");
+            return false;
+          }
+          for (int i = 0; i < parts.length; ++i) {
+            weights[i] = Integer.parseInt(parts[i].trim());
+          }
+        } else if (name.equals("report")) {
+          reportName = value;
+        } else if (name.equals("external")) {
+          external = Boolean.parseBoolean(value);
+        } else {
+          System.out.println("Unknown argument: " + name);
+          return false;
+        }
+      } catch (NumberFormatException nfe) {
+        System.out.println("Invalid number for " + name + ": " + value);
+        return false;
+      }
+    }
+    
+    if ((rate <= 0) || (duration <= 0) || (warmup < 0) || (warmup >= duration)
+        || (connections <= 0) || (timeout <= 0) || (sumOfWeights() <= 0)) {
+      System.out.println("The rate, duration, connections, timeout and mix must be positive,"
+          + " and the warmup shorter than the duration");
+      return false;
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Create the files that are downloaded, in the server's file
+   * directory.  They're deleted when the program ends.
+   * 
+   * @param cfg the configuration
+   * @return whether the files were created
+   */
+  private static boolean createFiles(final Config cfg) {
+    if (!cfg.canDownloadExtension("txt")) {
+      return false;
+    }
+    
+    final File dir = new File(cfg.getFileDirectory());
+    if (!dir.isDirectory()) {
+      return false;
+    }
+    
+    for (int i = 0; i < FILE_NAMES.length; ++i) {
+      final byte[] contents = new byte[FILE_SIZES[i]];
+      for (int j = 0; j < contents.length; ++j) {
+        contents[j] = (byte) ((j % 64 == 63) ? '\n' : ('a' + (j % 26)));
+      }
+      
+      final File file = new File(dir, FILE_NAMES[i]);
+      try {
+        Files.write(file.toPath(), contents);
+      } catch (IOException ioe) {
+        System.out.println("Exception writing " + file.getPath() + ": " + ioe.getMessage());
+        return false;
+      }
+      file.deleteOnExit();
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Start the server on a thread of its own, and wait until it
+   * accepts connections.
+   * 
+   * @param cfg the configuration
+   * @return whether the server started
+   */
+  private boolean startServer(final Config cfg) {
+    Registrar.registerHandlers();
+    final Shortstop server = new Shortstop(cfg);
+    final Thread thread = new Thread(server::startServer, "shortstop-server");
+    thread.setDaemon(true);
+    thread.start();
+    
+    final long deadline = System.currentTimeMillis() + 10_000L;
+    while (System.currentTimeMillis() < deadline) {
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+        return true;
+      } catch (IOException ioe) {
+        try {
+          Thread.sleep(100L);
+        } catch (InterruptedException ie) {
+          return false;
+        }
+      }
+    }
+    
+    return false;
+  }
+  
+  /**
+   * Send the requests, and write the report.
+   * 
+   * @param cfg the configuration
+   */
+  private void run(final Config cfg) {
+    port = cfg.getPort();
+    if (!external && !startServer(cfg)) {
+      System.out.println("The server did not start on port " + port);
+      return;
+    }
+    
+    // Without files to download, don't send requests for them
+    if (!createFiles(cfg) && (weights[Kind.STATIC.ordinal()] > 0)) {
+      System.out.println("Files can't be downloaded (see shortstop.props), so none are requested");
+      weights[Kind.STATIC.ordinal()] = 0;
+      if (sumOfWeights() <= 0) {
+        return;
+      }
+    }
+    
+    System.out.println(String.format("Sending %d requests/s over %d connections for %d s"
+        + " (%d s warmup) to port %d", rate, connections, duration, warmup, port));
+    
+    // Spread the requests evenly over the workers, staggering their starts
+    final long interval = TimeUnit.SECONDS.toNanos(1L) / rate;
+    final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100L);
+    final long measureStart = start + TimeUnit.SECONDS.toNanos(warmup);
+    final long end = start + TimeUnit.SECONDS.toNanos(duration);
+    final Worker[] workers = new Worker[connections];
+    for (int i = 0; i < connections; ++i) {
+      workers[i] = new Worker(i, start + (i * interval), interval * connections, measureStart, end);
+      workers[i].start();
+    }
+    
+    for (Worker worker : workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException ie) {
+        return;
+      }
+    }
+    
+    // Combine the workers' results
+    final LatencyHistogram all = new LatencyHistogram(HIGHEST_LATENCY);
+    final LatencyHistogram[] byKind = new LatencyHistogram[Kind.values().length];
+    final LatencyHistogram failed = new LatencyHistogram(HIGHEST_LATENCY);
+    final long[] statuses = new long[6];
+    long errors = 0L;
+    long finished = measureStart;
+    for (int i = 0; i < byKind.length; ++i) {
+      byKind[i] = new LatencyHistogram(HIGHEST_LATENCY);
+    }
+    for (Worker worker : workers) {
+      all.add(worker.all);
+      failed.add(worker.failed);
+      for (int i = 0; i < byKind.length; ++i) {
+        byKind[i].add(worker.byKind[i]);
+      }
+      for (int i = 0; i < statuses.length; ++i) {
+        statuses[i] += worker.statuses[i];
+      }
+      errors += worker.errors;
+      finished = Math.max(finished, worker.finished);
+    }
+    
+    // The throughput is over the time actually taken, which is longer
+    // than the duration if the server couldn't keep up
+    final double seconds = Math.max(1L, finished - measureStart) / 1e9;
+    final double throughput = all.getTotalCount() / seconds;
+    
+    final String report = makeReport(cfg, all, byKind, failed, statuses, errors, throughput);
+    try (FileWriter writer = new FileWriter(reportName, StandardCharsets.UTF_8)) {
+      writer.write(report);
+    } catch (IOException ioe) {
+      System.out.println("Exception writing " + reportName + ": " + ioe.getMessage());
+    }
+    
+    printSummary(all, byKind, failed, throughput);
+    System.out.println("Report written to " + reportName);
+  }
+  
+  /**
+   * Choose the kind of a request, interleaving the kinds by weight.
+   * 
+   * @param seq the number of the request
+   * @return the kind
+   */
+  private Kind chooseKind(final long seq) {
+    int slot = (int) (seq % sumOfWeights());
+    for (Kind kind : Kind.values()) {
+      slot -= weights[kind.ordinal()];
+      if (slot < 0) {
+        return kind;
+      }
+    }
+    
+    return Kind.MISSING;
+  }
+  
+  /**
+   * Make the path of a request.
+   * 
+   * @param kind the kind of request
+   * @param seq the number of the request
+   * @return the path
+   */
+  private static String makePath(final Kind kind, final long seq) {
+    switch (kind) {
+      case STATIC:
+        return "/" + FILE_NAMES[(int) (seq % FILE_NAMES.length)];
+      case TEMPLATE:
+        return "/api/" + (seq % 1000) + "/" + (seq % 7);
+      default:
+        return "/missing/" + (seq % 100);
+    }
+  }
+  
+  /**
+   * Return the sum of the weights of the kinds of request.
+   * 
+   * @return the sum
+   */
+  private int sumOfWeights() {
+    return Arrays.stream(weights).sum();
+  }
+  
+  /**
+   * Make the report, in JSON.  Latencies are in microseconds.
+   * 
+   * @param cfg the configuration
+   * @param all the latencies of all requests
+   * @param byKind the latencies of each kind of request
+   * @param failed the latencies of the failed requests
+   * @param statuses the number of responses with each class of status
+   * @param errors the number of failed requests
+   * @param throughput the number of responses per second
+   * @return the report
+   */
+  private String makeReport(final Config cfg, final LatencyHistogram all,
+                            final LatencyHistogram[] byKind, final LatencyHistogram failed,
+                            final long[] statuses, final long errors, final double throughput) {
+    final StringBuilder sb = new StringBuilder(2048);
+    sb.append("{\n");
+    sb.append("  \"date\": \"").append(Instant.now()).append("\",\n");
+    sb.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+    sb.append("  \"server\": {\"external\": ").append(external);
+    if (!external) {
+      sb.append(", \"mode\": \"").append(cfg.getExecutionMode().name().toLowerCase(Locale.US))
+        .append("\", \"workers\": ").append(cfg.getWorkerPoolSize())
+        .append(", \"selectorThreads\": ").append(cfg.getSelectorThreads());
+    }
+    sb.append("},\n");
+    sb.append("  \"rate\": ").append(rate).append(",\n");
+    sb.append("  \"durationSeconds\": ").append(duration).append(",\n");
+    sb.append("  \"warmupSeconds\": ").append(warmup).append(",\n");
+    sb.append("  \"connections\": ").append(connections).append(",\n");
+    sb.append("  \"timeoutMillis\": ").append(timeout).append(",\n");
+    sb.append("  \"mix\": {");
+    for (Kind kind : Kind.values()) {
+      sb.append((kind.ordinal() == 0) ? "" : ", ");
+      sb.append('"').append(kind.label).append("\": ").append(weights[kind.ordinal()]);
+    }
+    sb.append("},\n");
+    sb.append("  \"requests\": ").append(all.getTotalCount()).append(",\n");
+    sb.append("  \"errors\": ").append(errors).append(",\n");
+    sb.append("  \"throughput\": ").append(String.format(Locale.US, "%.1f", throughput))
+      .append(",\n");
+    sb.append("  \"statuses\": {");
+    for (int i = 1; i < statuses.length; ++i) {
+      sb.append((i == 1) ? "" : ", ").append('"').append(i).append("xx\": ").append(statuses[i]);
+    }
+    sb.append("},\n");
+    sb.append("  \"latencyMicros\": ");
+    appendLatencies(sb, all);
+    sb.append(",\n");
+    sb.append("  \"errorLatencyMicros\": ");
+    appendLatencies(sb, failed);
+    sb.append(",\n");
+    sb.append("  \"byKind\": {\n");
+    for (Kind kind : Kind.values()) {
+      final LatencyHistogram hist = byKind[kind.ordinal()];
+      sb.append("    \"").append(kind.label).append("\": {\"requests\": ")
+        .append(hist.getTotalCount()).append(", \"latencyMicros\": ");
+      appendLatencies(sb, hist);
+      sb.append((kind.ordinal() < (byKind.length - 1)) ? "},\n" : "}\n");
+    }
+    sb.append("  }\n");
+    sb.append("}\n");
+    
+    return sb.toString();
+  }
+  
+  /**
+   * Add the latencies of a histogram to the report.
+   * 
+   * @param sb the report
+   * @param hist the histogram
+   */
+  private static void appendLatencies(final StringBuilder sb, final LatencyHistogram hist) {
+    sb.append("{\"min\": ").append(hist.getMin());
+    sb.append(", \"mean\": ").append(String.format(Locale.US, "%.1f", hist.getMean()));
+    for (int i = 0; i < PERCENTILES.length; ++i) {
+      sb.append(", \"").append(PERCENTILE_NAMES[i]).append("\": ")
+        .append(hist.getValueAtPercentile(PERCENTILES[i]));
+    }
+    sb.append(", \"max\": ").append(hist.getMax()).append('}');
+  }
+  
+  /**
+   * Print a summary of the latencies, in milliseconds.
+   * 
+   * @param all the latencies of all requests
+   * @param byKind the latencies of each kind of request
+   * @param failed the latencies of the failed requests
+   * @param throughput the number of responses per second
+   */
+  private static void printSummary(final LatencyHistogram all, final LatencyHistogram[] byKind,
+                                   final LatencyHistogram failed, final double throughput) {
+    System.out.println(String.format(Locale.US, "%-9s %9s %9s %9s %9s %9s",
+        "", "requests", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+    printRow("all", all);
+    for (Kind kind : Kind.values()) {
+      printRow(kind.label, byKind[kind.ordinal()]);
+    }
+    printRow("errors", failed);
+    System.out.println(String.format(Locale.US, "Throughput: %.1f requests/s, errors: %d",
+        throughput, failed.getTotalCount()));
+  }
+  
+  /**
+   * Print a row of the summary.
+   * 
+   * @param label the name of the row
+   * @param hist the latencies
+   */
+  private static void printRow(final String label, final LatencyHistogram hist) {
+    System.out.println(String.format(Locale.US, "%-9s %9d %9.3f %9.3f %9.3f %9.3f", label,
+        hist.getTotalCount(), hist.getValueAtPercentile(50.0) / 1000.0,
+        hist.getValueAtPercentile(99.0) / 1000.0, hist.getValueAtPercentile(99.9) / 1000.0,
+        hist.getMax() / 1000.0));
+  }
+  
+  /**
+   * Entry point.  The arguments (all optional) are:
+   * rate=requests per second, duration=seconds, warmup=seconds,
+   * connections=count, mix=static:template:missing weights,
+   * timeout=milliseconds to wait for a connection or a response before
+   * the request fails, report=file name, external=true to use a server
+   * that's already running.  The server's port and settings come from shortstop.props.
+   * 
+   * @param args arguments to the program
+   */
+  public static void main(final String[] args) {
+    final LoadGenerator gen = new LoadGenerator();
+    if (!gen.parseArgs(args)) {
+      return;
+    }
+    
+    gen.run(new Config());
+    System.exit(0);
+  }
+}
@@ -0,0 +1,100 @@
+package io.miti.shortstop.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.miti.shortstop.model.Config;
+import io.miti.shortstop.model.Request;
+import io.miti.shortstop.model.Response;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBench {
+  
+  /** The body of the responses that are written. */
+  private static final String BODY = "{\"sum\": \"1234\"}";
+  
+  /** The server, for writing responses. */
+  private Shortstop server = null;
+  
+  /** The encoder for the heads, reused like it is for a connection. */
+  private ResponseEncoder encoder = null;
+  
+  /** The request whose response is reused. */
+  private Request request = null;
+  
+  /** The response that is reset. */
+  private Response response = null;
+  
+  /** Where the responses are written. */
+  private final OutputStream out = OutputStream.nullOutputStream();
+  
+  /**
+   * Default constructor.
+   */
+  public ResponseBench() {
+    super();
+  }
+  
+  /**
+   * Create the server and the objects that are reused.
+   */
+  @Setup
+  public void setup() {
+    server = new Shortstop(new Config());
+    encoder = new ResponseEncoder();
+    request = new Request("GET /api/sum HTTP/1.1");
+    request.parseURLandParameters();
+    response = new Response();
+  }
+  
+  /**
+   * Create a response, which sets the defaults.
+   * 
+   * @return the response
+   */
+  @Benchmark
+  public Response construct() {
+    return new Response();
+  }
+  
+  /**
+   * Reset a response and set its defaults, like a reused response.
+   * 
+   * @return the response
+   */
+  @Benchmark
+  public Response resetDefaults() {
+    return response.reset().setDefaults();
+  }
+  
+  /**
+   * Build a small JSON response the way a handler does, and write it
+   * (status line, headers and body) to a stream that discards it.
+   * 
+   * @return the response
+   * @throws IOException never
+   */
+  @Benchmark
+  public Response writeResponse() throws IOException {
+    final Response resp = request.newResponse().setJsonContentType().setBody(BODY);
+    server.writeResponse(resp, out, null, encoder);
+    return resp;
+  }
+}
@@ -0,0 +1,148 @@
+package io.miti.shortstop.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.miti.shortstop.model.Config;
+import io.miti.shortstop.model.HttpOperation;
+import io.miti.shortstop.model.Request;
+import io.miti.shortstop.model.RequestInterface;
+import io.miti.shortstop.model.Response;
+import io.miti.shortstop.model.UrlTemplate;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouterBench {
+  
+  /** The handler for every route. */
+  private static final RequestInterface HANDLER = RouterBench::handle;
+  
+  /** The number of routes registered with templates like /api/g3/r45/:id. */
+  @Param({"10", "1000", "10000"})
+  public int routes;
+  
+  /** The configuration. */
+  private Config cfg = null;
+  
+  /** A request for a literal route. */
+  private Request literal = null;
+  
+  /** A request for the last templated route registered. */
+  private Request templated = null;
+  
+  /** A request that doesn't match any route. */
+  private Request missing = null;
+  
+  /**
+   * Default constructor.
+   */
+  public RouterBench() {
+    super();
+  }
+  
+  /**
+   * Register the routes, grouped 100 to a node so no node has a huge
+   * number of children, and parse the requests.  The routes are never
+   * removed, since each trial runs in its own fork.
+   */
+  @Setup
+  public void setup() {
+    cfg = new Config();
+    Registrar.register(HttpOperation.GET, "/api/sum", HANDLER);
+    for (int i = 0; i < routes; ++i) {
+      Registrar.register(HttpOperation.GET, makeTemplate(i), HANDLER);
+    }
+    
+    literal = makeRequest("GET /api/sum HTTP/1.1");
+    templated = makeRequest("GET /api/g" + ((routes - 1) / 100) + "/r"
+        + ((routes - 1) % 100) + "/42 HTTP/1.1");
+    missing = makeRequest("GET /api/none/here/42 HTTP/1.1");
+  }
+  
+  /**
+   * Build a URL template.
+   * 
+   * @return the template
+   */
+  @Benchmark
+  public UrlTemplate buildTemplate() {
+    return new UrlTemplate("/api/:val1/:val2/items");
+  }
+  
+  /**
+   * Route a request to a literal route.
+   * 
+   * @return the response
+   */
+  @Benchmark
+  public Response processLiteral() {
+    return Registrar.process(literal, cfg);
+  }
+  
+  /**
+   * Route a request to a templated route, setting its variable.
+   * 
+   * @return the response
+   */
+  @Benchmark
+  public Response processTemplated() {
+    return Registrar.process(templated, cfg);
+  }
+  
+  /**
+   * Route a request that matches nothing (a 404).
+   * 
+   * @return null
+   */
+  @Benchmark
+  public Response processMissing() {
+    return Registrar.process(missing, cfg);
+  }
+  
+  /**
+   * Make the template for a route.
+   * 
+   * @param index the number of the route
+   * @return the URL template
+   */
+  private static String makeTemplate(final int index) {
+    return "/api/g" + (index / 100) + "/r" + (index % 100) + "/:id";
+  }
+  
+  /**
+   * Parse a request.
+   * 
+   * @param line the request line
+   * @return the request
+   */
+  private static Request makeRequest(final String line) {
+    final Request request = new Request(line);
+    request.parseURLandParameters();
+    return request;
+  }
+  
+  /**
+   * The handler for every route.
+   * 
+   * @param request the request
+   * @return an empty response
+   */
+  private static Response handle(final Request request) {
+    return request.newResponse();
+  }
+}
@@ -0,0 +1,58 @@
+package io.miti.shortstop.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DigestBench {
+  
+  /** The size of the body that is hashed, in bytes. */
+  @Param({"64", "1024", "65536"})
+  public int size;
+  
+  /** The body that is hashed. */
+  private byte[] body = null;
+  
+  /**
+   * Default constructor.
+   */
+  public DigestBench() {
+    super();
+  }
+  
+  /**
+   * Fill the body with random bytes.
+   */
+  @Setup
+  public void setup() {
+    body = new byte[size];
+    new Random(42L).nextBytes(body);
+  }
+  
+  /**
+   * Return the base-64 MD5 hash of the body.
+   * 
+   * @return the hash
+   */
+  @Benchmark
+  public String getMD5() {
+    return Utility.getMD5(body);
+  }
+}
@@ -0,0 +1,171 @@
+package io.miti.shortstop.util;
+
+public final class LatencyHistogram {
+  
+  /** The number of bits for the position within a bucket (2048 positions, about 0.1% error). */
+  private static final int SUB_BUCKET_BITS = 11;
+  
+  /** Half the number of positions in a bucket; the upper half is used past the first bucket. */
+  private static final int SUB_BUCKET_HALF = 1 << (SUB_BUCKET_BITS - 1);
+  
+  /** The mask for values that fit in the first bucket. */
+  private static final long SUB_BUCKET_MASK = (1L << SUB_BUCKET_BITS) - 1L;
+  
+  /** The largest value recorded; larger values are recorded as this. */
+  private final long highest;
+  
+  /** The count for each recorded value, in log-linear buckets. */
+  private final long[] counts;
+  
+  /** The number of values recorded. */
+  private long totalCount = 0L;
+  
+  /** The sum of the values recorded, for the mean. */
+  private double total = 0.0;
+  
+  /** The smallest value recorded. */
+  private long min = Long.MAX_VALUE;
+  
+  /** The largest value recorded (exact, not rounded to a bucket). */
+  private long max = 0L;
+  
+  /**
+   * Constructor.  Values from 0 to the highest are recorded to about
+   * three significant digits, in buckets that double in width (like
+   * an HdrHistogram), so the memory used only grows with the log of
+   * the range.
+   * 
+   * @param highest the largest value to record
+   */
+  public LatencyHistogram(final long highest) {
+    this.highest = Math.max(highest, SUB_BUCKET_MASK);
+    counts = new long[countsIndex(this.highest) + 1];
+  }
+  
+  /**
+   * Record a value.  Negative values are recorded as 0.
+   * 
+   * @param value the value
+   */
+  public void record(final long value) {
+    final long val = Math.max(0L, Math.min(highest, value));
+    ++counts[countsIndex(val)];
+    ++totalCount;
+    total += val;
+    min = Math.min(min, val);
+    max = Math.max(max, val);
+  }
+  
+  /**
+   * Add the values recorded by another histogram with the same range.
+   * 
+   * @param other the other histogram
+   */
+  public void add(final LatencyHistogram other) {
+    if (other.counts.length != counts.length) {
+      throw new IllegalArgumentException("The histograms have different ranges");
+    }
+    
+    for (int i = 0; i < counts.length; ++i) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+    total += other.total;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+  
+  /**
+   * Return the number of values recorded.
+   * 
+   * @return the count
+   */
+  public long getTotalCount() {
+    return totalCount;
+  }
+  
+  /**
+   * Return the smallest value recorded.
+   * 
+   * @return the smallest value, or 0 if none were recorded
+   */
+  public long getMin() {
+    return (totalCount == 0L) ? 0L : min;
+  }
+  
+  /**
+   * Return the largest value recorded.
+   * 
+   * @return the largest value, or 0 if none were recorded
+   */
+  public long getMax() {
+    return max;
+  }
+  
+  /**
+   * Return the mean of the values recorded.
+   * 
+   * @return the mean, or 0 if none were recorded
+   */
+  public double getMean() {
+    return (totalCount == 0L) ? 0.0 : (total / totalCount);
+  }
+  
+  /**
+   * Return the value at a percentile: the largest value that could be
+   * in the bucket holding it, so the result is never lower than the
+   * true value (and never higher than the maximum).
+   * 
+   * @param percentile the percentile (e.g., 99.9)
+   * @return the value, or 0 if none were recorded
+   */
+  public long getValueAtPercentile(final double percentile) {
+    if (totalCount == 0L) {
+      return 0L;
+    }
+    
+    // Find the bucket holding the value with the rank for the percentile
+    final double pct = Math.max(0.0, Math.min(100.0, percentile));
+    final long rank = Math.max(1L, (long) Math.ceil((pct / 100.0) * totalCount));
+    long seen = 0L;
+    for (int i = 0; i < counts.length; ++i) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(max, highestEquivalentValue(i));
+      }
+    }
+    
+    return max;
+  }
+  
+  /**
+   * Return the index of the count for a value.  The first bucket
+   * holds values below 2048 exactly; each bucket after that covers
+   * twice the range, with 1024 positions.
+   * 
+   * @param value the value
+   * @return the index into counts
+   */
+  private static int countsIndex(final long value) {
+    final int bucket = (63 - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK)) - (SUB_BUCKET_BITS - 1);
+    final int subBucket = (int) (value >>> bucket);
+    return ((bucket + 1) << (SUB_BUCKET_BITS - 1)) + (subBucket - SUB_BUCKET_HALF);
+  }
+  
+  /**
+   * Return the largest value that's counted at an index.
+   * 
+   * @param index the index into counts
+   * @return the largest value for the index
+   */
+  private static long highestEquivalentValue(final int index) {
+    int bucket = (index >> (SUB_BUCKET_BITS - 1)) - 1;
+    long subBucket = (index & (SUB_BUCKET_HALF - 1)) + SUB_BUCKET_HALF;
+    if (bucket < 0) {
+      subBucket -= SUB_BUCKET_HALF;
+      bucket = 0;
+    }
+    
+    return ((subBucket + 1L) << bucket) - 1L;
+  }
+}
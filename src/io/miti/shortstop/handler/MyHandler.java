@@ -10,14 +10,14 @@ public final class MyHandler {
   }
   
   public static Response simpleHandler(final Request req) {
-    final Response resp = new Response(200);
+    final Response resp = req.newResponse();
     String msg = "{\"sum\": \"unknown\"}";
     resp.setJsonContentType().setBody(msg);
     return resp;
   }
   
   public static Response addStrings(final Request req) {
-    final Response resp = new Response(200);
+    final Response resp = req.newResponse();
     String sum = req.getTemplateVariable("val1") + req.getTemplateVariable("val2");
     String msg = "{\"sum\": \"" + sum + "\"}";
     resp.setJsonContentType().setBody(msg);
@@ -0,0 +1,9 @@
+package io.miti.shortstop.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+@FunctionalInterface
+public interface BodyWriter {
+  void write(OutputStream out) throws IOException;
+}
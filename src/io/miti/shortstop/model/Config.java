@@ -18,18 +18,65 @@ public final class Config
   
   private static final String PROPS_FILENAME = "shortstop.props";
   
+  private static final int DEFAULT_QUEUE_SIZE = 1_000;
+  
+  private static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 5;
+  
+  private static final int DEFAULT_KEEP_ALIVE_MAX = 100;
+  
+  private static final int DEFAULT_FILE_CACHE_MAX_FILE = 1024;
+  
+  private static final int DEFAULT_FILE_CACHE_CHECK = 2_000;
+  
+  private static final int DEFAULT_COMPRESS_MIN_SIZE = 256;
+  
+  private static final int DEFAULT_FILE_MAP_MIN_FILE = 1024;
+  
+  private static final int DEFAULT_FILE_MAP_MIN_HITS = 2;
+  
+  private static final int DEFAULT_MAX_BODY = 10_240;
+  
   private int port = DEFAULT_PORT;
   private boolean canDownloadFiles = false;
   private boolean canDownloadAllExtensions = false;
   private Set<String> allowedExtensions = null;
   private String fileDirectory = null;
+  private int fileCacheSize = 0;
+  private int fileCacheMaxFile = DEFAULT_FILE_CACHE_MAX_FILE;
+  private int fileCacheCheckInterval = DEFAULT_FILE_CACHE_CHECK;
+  private int fileMapSize = 0;
+  private int fileMapMinFile = DEFAULT_FILE_MAP_MIN_FILE;
+  private int fileMapMinHits = DEFAULT_FILE_MAP_MIN_HITS;
+  private Set<String> compressExtensions = null;
+  private int compressMinSize = DEFAULT_COMPRESS_MIN_SIZE;
   private boolean computeMD5Response = false;
+  private boolean responseETags = false;
   private boolean supportTrace = false;
+  private boolean logRequests = false;
+  private int maxRequestBody = DEFAULT_MAX_BODY;
+  private ExecutionMode executionMode = ExecutionMode.SINGLE;
+  private int workerPoolSize = Runtime.getRuntime().availableProcessors();
+  private int workerQueueSize = DEFAULT_QUEUE_SIZE;
+  private RejectionPolicy rejectionPolicy = RejectionPolicy.REJECT;
+  private int selectorThreads = Runtime.getRuntime().availableProcessors();
+  private boolean keepAlive = true;
+  private int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+  private int keepAliveMax = DEFAULT_KEEP_ALIVE_MAX;
   
   public Config() {
     readProperties();
   }
   
+  /**
+   * Constructor taking the settings, instead of reading them from
+   * shortstop.props (e.g., for tests).
+   * 
+   * @param props the settings
+   */
+  public Config(final Properties props) {
+    loadProperties(props);
+  }
+  
   public int getPort() {
     return port;
   }
@@ -110,13 +157,131 @@ public final class Config
       fileDirectory = null;
     }
     
+    // Get how much memory is used to keep downloaded files in memory
+    fileCacheSize = Utility.parseStringAsInt(props.getProperty("file.cache.size.kb"), 0);
+    fileCacheSize = Math.max(0, Math.min(1_048_576, fileCacheSize));
+    fileCacheMaxFile = Utility.parseStringAsInt(props.getProperty("file.cache.max.file.kb"),
+        DEFAULT_FILE_CACHE_MAX_FILE);
+    fileCacheMaxFile = Math.max(0, Math.min(1_048_576, fileCacheMaxFile));
+    fileCacheCheckInterval = Utility.parseStringAsInt(props.getProperty("file.cache.check.ms"),
+        DEFAULT_FILE_CACHE_CHECK);
+    fileCacheCheckInterval = Math.max(0, fileCacheCheckInterval);
+    
+    // Get how much of the larger downloaded files can be mapped into memory
+    fileMapSize = Utility.parseStringAsInt(props.getProperty("file.mmap.size.mb"), 0);
+    fileMapSize = Math.max(0, Math.min(1_048_576, fileMapSize));
+    fileMapMinFile = Utility.parseStringAsInt(props.getProperty("file.mmap.min.file.kb"),
+        DEFAULT_FILE_MAP_MIN_FILE);
+    fileMapMinFile = Math.max(0, Math.min(1_048_576, fileMapMinFile));
+    fileMapMinHits = Utility.parseStringAsInt(props.getProperty("file.mmap.min.hits"),
+        DEFAULT_FILE_MAP_MIN_HITS);
+    fileMapMinHits = Math.max(1, fileMapMinHits);
+    
+    // Get the file extensions that are sent compressed, when the client accepts it
+    final String compressExts = props.getProperty("compression.extensions");
+    if ((compressExts != null) && !compressExts.trim().isEmpty()) {
+      final StringTokenizer st = new StringTokenizer(compressExts, ",");
+      compressExtensions = new HashSet<String>(10);
+      while (st.hasMoreTokens()) {
+        final String str = st.nextToken().trim();
+        if (!str.isEmpty()) {
+          compressExtensions.add(str.toLowerCase(Locale.US));
+        }
+      }
+    }
+    compressMinSize = Utility.parseStringAsInt(props.getProperty("compression.min.size"),
+        DEFAULT_COMPRESS_MIN_SIZE);
+    compressMinSize = Math.max(0, compressMinSize);
+    
     // Check if we should compute the MD5 for responses
     computeMD5Response = Utility.parseStringAsBoolean(
         props.getProperty("md5.response"), false);
     
+    // Check if we should add an ETag to handler responses
+    responseETags = Utility.parseStringAsBoolean(
+        props.getProperty("etag.responses"), false);
+    
     // Check if we support TRACE operations automatically
     supportTrace = Utility.parseStringAsBoolean(
         props.getProperty("trace.enabled"), false);
+    
+    // Get the largest request body we accept
+    maxRequestBody = Utility.parseStringAsInt(props.getProperty("request.max.body.kb"),
+        DEFAULT_MAX_BODY);
+    maxRequestBody = Math.max(0, Math.min(2_000_000, maxRequestBody));
+    
+    // Check if we print the request line of each request
+    logRequests = Utility.parseStringAsBoolean(
+        props.getProperty("log.requests"), false);
+    
+    // Get how connections are executed (on the accept thread, or a pool)
+    executionMode = parseExecutionMode(props.getProperty("server.mode"));
+    
+    // Get the size of the worker pool and its queue of pending connections
+    workerPoolSize = Utility.parseStringAsInt(props.getProperty("worker.pool.size"),
+        Runtime.getRuntime().availableProcessors());
+    workerPoolSize = Math.max(1, Math.min(10_000, workerPoolSize));
+    workerQueueSize = Utility.parseStringAsInt(props.getProperty("worker.queue.size"),
+        DEFAULT_QUEUE_SIZE);
+    workerQueueSize = Math.max(0, Math.min(1_000_000, workerQueueSize));
+    
+    // Get what to do with a connection when the pool and queue are full
+    rejectionPolicy = parseRejectionPolicy(props.getProperty("worker.rejection.policy"));
+    
+    // Get the number of selector threads (event loops) for the NIO mode
+    selectorThreads = Utility.parseStringAsInt(props.getProperty("nio.selector.threads"),
+        Runtime.getRuntime().availableProcessors());
+    selectorThreads = Math.max(1, Math.min(1_000, selectorThreads));
+    
+    // Check if connections are kept open between requests, and for how long
+    keepAlive = Utility.parseStringAsBoolean(
+        props.getProperty("keepalive.enabled"), true);
+    keepAliveTimeout = Utility.parseStringAsInt(props.getProperty("keepalive.timeout"),
+        DEFAULT_KEEP_ALIVE_TIMEOUT);
+    keepAliveTimeout = Math.max(1, Math.min(3_600, keepAliveTimeout));
+    keepAliveMax = Utility.parseStringAsInt(props.getProperty("keepalive.max.requests"),
+        DEFAULT_KEEP_ALIVE_MAX);
+    keepAliveMax = Math.max(1, keepAliveMax);
+  }
+  
+  
+  /**
+   * Parse the execution mode, defaulting to SINGLE.
+   * 
+   * @param str the value from the properties file
+   * @return the execution mode
+   */
+  private static ExecutionMode parseExecutionMode(final String str) {
+    if ((str == null) || str.trim().isEmpty()) {
+      return ExecutionMode.SINGLE;
+    }
+    
+    try {
+      return ExecutionMode.valueOf(str.trim().toUpperCase(Locale.US));
+    } catch (IllegalArgumentException iae) {
+      System.err.println("Invalid server mode: " + str);
+      return ExecutionMode.SINGLE;
+    }
+  }
+  
+  
+  /**
+   * Parse the rejection policy, defaulting to REJECT.
+   * 
+   * @param str the value from the properties file
+   * @return the rejection policy
+   */
+  private static RejectionPolicy parseRejectionPolicy(final String str) {
+    if ((str == null) || str.trim().isEmpty()) {
+      return RejectionPolicy.REJECT;
+    }
+    
+    try {
+      return RejectionPolicy.valueOf(str.trim().toUpperCase(Locale.US));
+    } catch (IllegalArgumentException iae) {
+      System.err.println("Invalid rejection policy: " + str);
+      return RejectionPolicy.REJECT;
+    }
   }
   
   
@@ -170,6 +335,102 @@ public final class Config
     return computeMD5Response;
   }
   
+  /**
+   * Return the most bytes of downloaded files kept in memory.  If
+   * this is zero, files are always sent from disk.
+   * 
+   * @return the size of the file cache, in bytes
+   */
+  public long getFileCacheSize() {
+    return (fileCacheSize * 1024L);
+  }
+  
+  /**
+   * Return the size of the largest file kept in memory.  Larger
+   * files are sent from disk.
+   * 
+   * @return the largest cached file, in bytes
+   */
+  public long getFileCacheMaxFileSize() {
+    return (fileCacheMaxFile * 1024L);
+  }
+  
+  /**
+   * Return how long a cached file is used before checking whether
+   * the file has changed.
+   * 
+   * @return the check interval, in milliseconds
+   */
+  public int getFileCacheCheckInterval() {
+    return fileCacheCheckInterval;
+  }
+  
+  /**
+   * Return the most bytes of downloaded files that are mapped into
+   * memory at once.  If this is zero, no files are mapped.
+   * 
+   * @return the size of the mapped file cache, in bytes
+   */
+  public long getFileMapSize() {
+    return (fileMapSize * 1024L * 1024L);
+  }
+  
+  /**
+   * Return the size of the smallest file that is mapped.  Smaller
+   * files are kept in the file cache, or sent from disk.
+   * 
+   * @return the smallest mapped file, in bytes
+   */
+  public long getFileMapMinFileSize() {
+    return (fileMapMinFile * 1024L);
+  }
+  
+  /**
+   * Return how many times a file is requested before it is mapped.
+   * 
+   * @return the number of requests
+   */
+  public int getFileMapMinHits() {
+    return fileMapMinHits;
+  }
+  
+  /**
+   * Return whether files with an extension can be sent compressed
+   * (gzip or deflate), if the client accepts it.  Only files in the
+   * file cache are compressed.
+   * 
+   * @param ext the file extension
+   * @return whether that extension can be compressed
+   */
+  public boolean canCompressExtension(final String ext) {
+    // Null input returns false
+    if ((ext == null) || (compressExtensions == null)) {
+      return false;
+    }
+    
+    return compressExtensions.contains(ext.toLowerCase(Locale.US));
+  }
+  
+  /**
+   * Return the size of the smallest file that is compressed.
+   * 
+   * @return the smallest compressed file, in bytes
+   */
+  public int getCompressMinSize() {
+    return compressMinSize;
+  }
+  
+  /**
+   * Whether to add an ETag, from the MD5 hash of the body, to
+   * handler responses that don't set one.  Downloaded files always
+   * get an ETag.
+   * 
+   * @return if we should add ETags to handler responses
+   */
+  public boolean shouldAddResponseETags() {
+    return responseETags;
+  }
+  
   
   /**
    * Whether we automatically support TRACE requests.
@@ -179,4 +440,111 @@ public final class Config
   public boolean traceEnabled() {
     return supportTrace;
   }
+  
+  
+  /**
+   * Return the largest request body that's accepted.  Requests
+   * with larger bodies are answered with 413.
+   * 
+   * @return the largest request body, in bytes
+   */
+  public int getMaxRequestBodySize() {
+    return maxRequestBody * 1024;
+  }
+  
+  
+  /**
+   * Whether the request line of each request is printed.
+   * 
+   * @return whether requests are logged
+   */
+  public boolean logRequests() {
+    return logRequests;
+  }
+  
+  
+  /**
+   * Return how accepted connections are executed.
+   * 
+   * @return the execution mode
+   */
+  public ExecutionMode getExecutionMode() {
+    return executionMode;
+  }
+  
+  
+  /**
+   * Return the number of threads in the worker pool.
+   * 
+   * @return the worker pool size
+   */
+  public int getWorkerPoolSize() {
+    return workerPoolSize;
+  }
+  
+  
+  /**
+   * Return the number of connections that can wait for a worker.
+   * A value of zero means connections are only handed directly
+   * to an idle worker.
+   * 
+   * @return the worker queue size
+   */
+  public int getWorkerQueueSize() {
+    return workerQueueSize;
+  }
+  
+  
+  /**
+   * Return what happens to a connection when all workers are
+   * busy and the queue is full.
+   * 
+   * @return the rejection policy
+   */
+  public RejectionPolicy getRejectionPolicy() {
+    return rejectionPolicy;
+  }
+  
+  
+  /**
+   * Return the number of selector threads (event loops) used
+   * when the execution mode is NIO.
+   * 
+   * @return the number of selector threads
+   */
+  public int getSelectorThreads() {
+    return selectorThreads;
+  }
+  
+  
+  /**
+   * Whether connections are kept open for more requests.
+   * 
+   * @return whether keep-alive is enabled
+   */
+  public boolean keepAliveEnabled() {
+    return keepAlive;
+  }
+  
+  
+  /**
+   * Return how long an idle connection is kept open, and how long
+   * a client has to send a complete request.
+   * 
+   * @return the idle timeout, in seconds
+   */
+  public int getKeepAliveTimeout() {
+    return keepAliveTimeout;
+  }
+  
+  
+  /**
+   * Return the most requests handled on one connection before
+   * it is closed.
+   * 
+   * @return the maximum number of requests per connection
+   */
+  public int getKeepAliveMax() {
+    return keepAliveMax;
+  }
 }
@@ -0,0 +1,85 @@
+package io.miti.shortstop.model;
+
+public final class EncodedHead {
+  
+  /** The response code. */
+  private final int code;
+  
+  /** The status message. */
+  private final String message;
+  
+  /** The encoded status line and headers (without the blank line that ends the head). */
+  private final byte[] bytes;
+  
+  /** The headers that were encoded, for looking them up. */
+  private final HeaderList headers;
+  
+  /** The default headers that weren't encoded, and are added when the response is sent. */
+  private final int defaults;
+  
+  /**
+   * Constructor.  Nothing is copied, so none of the arguments may be
+   * changed afterwards.
+   * 
+   * @param code the response code
+   * @param message the status message
+   * @param bytes the encoded status line and headers
+   * @param headers the headers that were encoded
+   * @param defaults the default headers that weren't encoded, as bits
+   */
+  public EncodedHead(final int code, final String message, final byte[] bytes,
+                     final HeaderList headers, final int defaults) {
+    this.code = code;
+    this.message = message;
+    this.bytes = bytes;
+    this.headers = headers;
+    this.defaults = defaults;
+  }
+  
+  /**
+   * Return the response code.
+   * 
+   * @return the response code
+   */
+  public int getCode() {
+    return code;
+  }
+  
+  /**
+   * Return the status message.
+   * 
+   * @return the status message
+   */
+  public String getMessage() {
+    return message;
+  }
+  
+  /**
+   * Return the encoded status line and headers.  The array must not
+   * be changed.
+   * 
+   * @return the encoded bytes
+   */
+  public byte[] getBytes() {
+    return bytes;
+  }
+  
+  /**
+   * Return the headers that were encoded.  The list must not be changed.
+   * 
+   * @return the headers
+   */
+  public HeaderList getHeaders() {
+    return headers;
+  }
+  
+  /**
+   * Return the default headers that weren't encoded, as bits (see
+   * DefaultHeaders).
+   * 
+   * @return the default headers still to send
+   */
+  public int getDefaults() {
+    return defaults;
+  }
+}
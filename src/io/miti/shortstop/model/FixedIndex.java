@@ -22,4 +22,32 @@ public final class FixedIndex {
   public String getFixed() {
     return fixed;
   }
+
+  @Override
+  public int hashCode() {
+    final int prime = 31;
+    int result = 1;
+    result = prime * result + ((fixed == null) ? 0 : fixed.hashCode());
+    result = prime * result + index;
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (getClass() != obj.getClass())
+      return false;
+    FixedIndex other = (FixedIndex) obj;
+    if (fixed == null) {
+      if (other.fixed != null)
+        return false;
+    } else if (!fixed.equals(other.fixed))
+      return false;
+    if (index != other.index)
+      return false;
+    return true;
+  }
 }
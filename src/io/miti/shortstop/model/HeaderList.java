@@ -0,0 +1,236 @@
+package io.miti.shortstop.model;
+
+import io.miti.shortstop.util.HeaderField;
+
+import java.util.Arrays;
+
+public final class HeaderList {
+  
+  /** The starting number of headers we have room for. */
+  private static final int INITIAL_SIZE = 8;
+  
+  /** The well-known names, used in place of the same name in another case. */
+  private static final String[] KNOWN_NAMES = {
+    HeaderField.RES_ACCESS_CONTROL_ALLOW_ORIGIN, HeaderField.RES_ACCEPT_PATCH,
+    HeaderField.RES_ACCEPT_RANGES, HeaderField.RES_AGE, HeaderField.RES_ALLOW,
+    HeaderField.RES_CACHE_CONTROL, HeaderField.RES_CONNECTION,
+    HeaderField.RES_CONTENT_DISPOSITION, HeaderField.RES_CONTENT_ENCODING,
+    HeaderField.RES_CONTENT_LANGUAGE, HeaderField.RES_CONTENT_LENGTH,
+    HeaderField.RES_CONTENT_LOCATION, HeaderField.RES_CONTENT_MD5,
+    HeaderField.RES_CONTENT_RANGE, HeaderField.RES_CONTENT_TYPE, HeaderField.RES_DATE,
+    HeaderField.RES_ETAG, HeaderField.RES_EXPIRES, HeaderField.RES_KEEP_ALIVE,
+    HeaderField.RES_LAST_MODIFIED,
+    HeaderField.RES_LINK, HeaderField.RES_LOCATION, HeaderField.RES_P3P,
+    HeaderField.RES_PRAGMA, HeaderField.RES_PROXY_AUTHENTICATE,
+    HeaderField.RES_PUBLIC_KEY_PINS, HeaderField.RES_REFRESH, HeaderField.RES_RETRY_AFTER,
+    HeaderField.RES_SERVER, HeaderField.RES_SET_COOKIE, HeaderField.RES_STATUS,
+    HeaderField.RES_STRICT_TRANSPORT_SECURITY, HeaderField.RES_TRAILER,
+    HeaderField.RES_TRANSFER_ENCODING, HeaderField.RES_UPGRADE, HeaderField.RES_VARY,
+    HeaderField.RES_VIA, HeaderField.RES_WARNING, HeaderField.RES_WWW_AUTHENTICATE,
+    HeaderField.RES_X_FRAME_OPTIONS
+  };
+  
+  /** The header names, in the order they were added. */
+  private String[] names = null;
+  
+  /** The header values, matching the names. */
+  private String[] values = null;
+  
+  /** The number of headers. */
+  private int size = 0;
+  
+  /**
+   * Default constructor.
+   */
+  public HeaderList() {
+    super();
+  }
+  
+  /**
+   * Return the number of headers.  A name that appears more than
+   * once is counted each time.
+   * 
+   * @return the number of headers
+   */
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * Return whether there are no headers.
+   * 
+   * @return whether the list is empty
+   */
+  public boolean isEmpty() {
+    return (size == 0);
+  }
+  
+  /**
+   * Return the name of a header.
+   * 
+   * @param index the position of the header, from zero
+   * @return the header name
+   */
+  public String getName(final int index) {
+    return names[index];
+  }
+  
+  /**
+   * Return the value of a header.
+   * 
+   * @param index the position of the header, from zero
+   * @return the header value
+   */
+  public String getValue(final int index) {
+    return values[index];
+  }
+  
+  /**
+   * Return the first value for a name.  The name is not case-sensitive.
+   * 
+   * @param name the header name
+   * @return the value, or null if there's no header with the name
+   */
+  public String get(final String name) {
+    final int index = indexOf(name, 0);
+    return ((index < 0) ? null : values[index]);
+  }
+  
+  /**
+   * Add a header, after any with the same name.
+   * 
+   * @param name the header name
+   * @param value the header value
+   */
+  public void add(final String name, final String value) {
+    if (names == null) {
+      names = new String[INITIAL_SIZE];
+      values = new String[INITIAL_SIZE];
+    } else if (size == names.length) {
+      names = Arrays.copyOf(names, size * 2);
+      values = Arrays.copyOf(values, size * 2);
+    }
+    
+    names[size] = canonical(name);
+    values[size] = value;
+    ++size;
+  }
+  
+  /**
+   * Set the value for a name, replacing any values it already has.
+   * The header keeps the position of its first value.
+   * 
+   * @param name the header name
+   * @param value the header value
+   */
+  public void set(final String name, final String value) {
+    final int index = indexOf(name, 0);
+    if (index < 0) {
+      add(name, value);
+      return;
+    }
+    
+    values[index] = value;
+    removeFrom(name, index + 1);
+  }
+  
+  /**
+   * Remove every header with the name.
+   * 
+   * @param name the header name
+   * @return whether any header was removed
+   */
+  public boolean remove(final String name) {
+    return removeFrom(name, 0);
+  }
+  
+  /**
+   * Remove all headers.  The arrays are kept, to be reused.
+   */
+  public void clear() {
+    if (size > 0) {
+      Arrays.fill(names, 0, size, null);
+      Arrays.fill(values, 0, size, null);
+      size = 0;
+    }
+  }
+  
+  /**
+   * Remove every header with the name, starting at a position.
+   * 
+   * @param name the header name
+   * @param start the position to start at
+   * @return whether any header was removed
+   */
+  private boolean removeFrom(final String name, final int start) {
+    // Move the headers we keep down over the ones we remove
+    int kept = start;
+    for (int i = start; i < size; ++i) {
+      if (!matches(names[i], name)) {
+        names[kept] = names[i];
+        values[kept] = values[i];
+        ++kept;
+      }
+    }
+    
+    if (kept == size) {
+      return false;
+    }
+    
+    Arrays.fill(names, kept, size, null);
+    Arrays.fill(values, kept, size, null);
+    size = kept;
+    return true;
+  }
+  
+  /**
+   * Find a header by name.
+   * 
+   * @param name the header name
+   * @param start the position to start at
+   * @return the position of the first match, or -1
+   */
+  private int indexOf(final String name, final int start) {
+    for (int i = start; i < size; ++i) {
+      if (matches(names[i], name)) {
+        return i;
+      }
+    }
+    
+    return -1;
+  }
+  
+  /**
+   * Return whether two header names match, ignoring case.
+   * 
+   * @param stored the stored name
+   * @param name the name to check
+   * @return whether they match
+   */
+  private static boolean matches(final String stored, final String name) {
+    return ((stored == name) || stored.equalsIgnoreCase(name));
+  }
+  
+  /**
+   * Return the well-known name matching a name, so the spelling is
+   * consistent and later lookups with the constant are quick.
+   * 
+   * @param name the header name
+   * @return the well-known name, or the name itself
+   */
+  private static String canonical(final String name) {
+    for (String known : KNOWN_NAMES) {
+      if (known == name) {
+        return known;
+      }
+    }
+    
+    for (String known : KNOWN_NAMES) {
+      if (known.equalsIgnoreCase(name)) {
+        return known;
+      }
+    }
+    
+    return name;
+  }
+}
@@ -0,0 +1,5 @@
+package io.miti.shortstop.model;
+
+public enum RejectionPolicy {
+  REJECT, CALLER, DISCARD
+}
@@ -2,9 +2,19 @@ package io.miti.shortstop.model;
 
 import io.miti.shortstop.util.Utility;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 public final class Request
 {
@@ -20,8 +30,20 @@ public final class Request
   /** Query string parameters (e.g., "?k1=v1&k2=v2..."). */
   private Map<String, String> parameters = null;
   
-  /** Any payload in the request. */
-  private char[] buffer = null;
+  /** Any payload in the request, as it was received. */
+  private byte[] buffer = null;
+  
+  /** A stream over the payload, when it's read from the client as the handler asks for it. */
+  private InputStream bodyStream = null;
+  
+  /** The length of the payload in the stream. */
+  private int bodyStreamLength = 0;
+  
+  /** The base-64 MD5 hash of the payload, if it was computed as the payload was read. */
+  private String bodyMD5 = null;
+  
+  /** The status code to answer with instead of handling the request (e.g., 413), or 0. */
+  private int rejectCode = 0;
   
   /** The parsed URL (from the endpoint, minus parameters and fragment). */
   private String url = null;
@@ -29,12 +51,15 @@ public final class Request
   /** Any fragment from the URL (e.g., "#top"). */
   private String fragment = null;
   
-  /** Map of key/value pairs from the header. */
-  private Map<String, String> header = null; 
+  /** The key/value pairs from the header. */
+  private final RequestHeaders header = new RequestHeaders();
   
   /** Map of values supplied from the URL template. */
   private Map<String, String> templateVariables = null;
   
+  /** The response handed out by newResponse(), reused for each request. */
+  private Response response = null;
+  
   /**
    * Default constructor.
    */
@@ -64,13 +89,39 @@ public final class Request
     protocol = line.substring(index1 + 1).trim();
   }
   
+  /**
+   * Constructor taking the parts of a request line that have
+   * already been parsed.
+   * 
+   * @param operation the HTTP operation
+   * @param endpoint the endpoint, with any hex encodings already decoded
+   * @param protocol the protocol (e.g., "HTTP/1.1")
+   */
+  public Request(final HttpOperation operation, final String endpoint, final String protocol) {
+    setRequestLine(operation, endpoint, protocol);
+  }
+  
+  /**
+   * Set the parts of the request line, when the request is reused.
+   * 
+   * @param operation the HTTP operation
+   * @param endpoint the endpoint, with any hex encodings already decoded
+   * @param protocol the protocol (e.g., "HTTP/1.1")
+   */
+  public void setRequestLine(final HttpOperation operation, final String endpoint,
+                             final String protocol) {
+    this.operation = operation;
+    this.endpoint = endpoint;
+    this.protocol = protocol;
+  }
+  
   /**
    * Decode hex strings in the input.
    * 
    * @param input the input (endpoint)
    * @return the input with hex encodings converted
    */
-  private static String decode(final String input) {
+  static String decode(final String input) {
     
     // Check the input
     if ((input == null) || input.isEmpty() || (input.indexOf('%') < 0)) {
@@ -130,6 +181,19 @@ public final class Request
     return parameters.get(key);
   }
   
+  /**
+   * Return the names of the query string parameters, sorted.
+   * 
+   * @return a new set of the parameter names, or null if there are none
+   */
+  public Set<String> getParameterKeys() {
+    if ((parameters == null) || parameters.isEmpty()) {
+      return null;
+    }
+    
+    return new TreeSet<String>(parameters.keySet());
+  }
+  
   /**
    * Populate the URL and parameters fields based on the endpoint value.
    */
@@ -205,31 +269,208 @@ public final class Request
   }
   
   /**
-   * Get the message body.
+   * Get the message body, decoded as UTF-8.
    * 
    * @return the message body
+   * @throws UncheckedIOException if the body can't be read from the client
    */
   public char[] getMessageBody() {
     // Check for null
-    if (buffer == null) {
+    if (!bufferBody()) {
       return null;
     }
     
-    // Return a copy of the buffer
-    return java.util.Arrays.copyOf(buffer, buffer.length);
+    // Decode the bytes into a new array
+    return new String(buffer, StandardCharsets.UTF_8).toCharArray();
   }
   
   /**
-   * Set the message body.
+   * Set the message body.  It's stored encoded as UTF-8.
    * 
    * @param caBuffer the message body
    */
   public void setMessageBody(final char[] caBuffer) {
+    bodyStream = null;
+    bodyMD5 = null;
     if (caBuffer == null) {
       buffer = null;
     } else {
-      buffer = java.util.Arrays.copyOf(caBuffer, caBuffer.length);
+      buffer = new String(caBuffer).getBytes(StandardCharsets.UTF_8);
+    }
+  }
+  
+  /**
+   * Get the message body, as the bytes that were received.  To read
+   * them without copying, use getMessageBodyBuffer().
+   * 
+   * @return a copy of the message body
+   * @throws UncheckedIOException if the body can't be read from the client
+   */
+  public byte[] getMessageBodyBytes() {
+    // Check for null
+    if (!bufferBody()) {
+      return null;
+    }
+    
+    // Return a copy of the buffer
+    return java.util.Arrays.copyOf(buffer, buffer.length);
+  }
+  
+  /**
+   * Get the message body, as a read-only view of the bytes that
+   * were received.  Nothing is copied.
+   * 
+   * @return the message body, or null if there is no body
+   * @throws UncheckedIOException if the body can't be read from the client
+   */
+  public ByteBuffer getMessageBodyBuffer() {
+    // Check for null
+    if (!bufferBody()) {
+      return null;
+    }
+    
+    return ByteBuffer.wrap(buffer).asReadOnlyBuffer();
+  }
+  
+  /**
+   * Set the message body as the bytes that were received.  The
+   * array is used directly, not copied, so the caller must not
+   * change it afterwards.
+   * 
+   * @param baBuffer the message body
+   */
+  public void setMessageBodyBytes(final byte[] baBuffer) {
+    bodyStream = null;
+    bodyMD5 = null;
+    buffer = baBuffer;
+  }
+  
+  /**
+   * Return the MD5 hash of the message body, if the parser computed
+   * it while reading the body.
+   * 
+   * @return the base-64 MD5 hash, or null if it wasn't computed
+   */
+  public String getMessageBodyMD5() {
+    return bodyMD5;
+  }
+  
+  /**
+   * Save the MD5 hash of the message body, computed while it was read.
+   * 
+   * @param md5 the base-64 MD5 hash
+   */
+  public void setMessageBodyMD5(final String md5) {
+    bodyMD5 = md5;
+  }
+  
+  /**
+   * Return the status code the request is answered with, without
+   * handling it, because it can't be read safely (e.g., 413 if the
+   * body is too large).  The connection is closed after the response.
+   * 
+   * @return the status code, or 0 if the request can be handled
+   */
+  public int getRejectCode() {
+    return rejectCode;
+  }
+  
+  /**
+   * Set the status code the request is answered with, without
+   * handling it.
+   * 
+   * @param code the status code
+   */
+  public void setRejectCode(final int code) {
+    rejectCode = code;
+  }
+  
+  /**
+   * Set the message body as a stream that is read from the client
+   * only when the handler asks for it.
+   * 
+   * @param stream the stream, which ends after the body
+   * @param length the length of the body, in bytes
+   */
+  public void setBodyStream(final InputStream stream, final int length) {
+    buffer = null;
+    bodyMD5 = null;
+    bodyStream = stream;
+    bodyStreamLength = length;
+  }
+  
+  /**
+   * Return a stream over the message body, which ends after the
+   * number of bytes in the Content-Length header.  If the body has
+   * not been read yet, reading the stream reads it from the client,
+   * so a large upload can be handled without holding it in memory.
+   * Once the stream has been read from, don't use getMessageBody().
+   * 
+   * @return the message body as a stream, or null if there is no body
+   */
+  public InputStream getBodyStream() {
+    if (bodyStream != null) {
+      return bodyStream;
+    } else if (buffer != null) {
+      return new ByteArrayInputStream(buffer);
+    }
+    
+    return null;
+  }
+  
+  /**
+   * Return a channel over the message body.  See getBodyStream().
+   * 
+   * @return the message body as a channel, or null if there is no body
+   */
+  public ReadableByteChannel getBodyChannel() {
+    final InputStream stream = getBodyStream();
+    return ((stream == null) ? null : Channels.newChannel(stream));
+  }
+  
+  /**
+   * If the body is still a stream, read all of it into memory.
+   * 
+   * @return whether there is a body
+   * @throws UncheckedIOException if the body can't be read from the client
+   */
+  private boolean bufferBody() {
+    if (bodyStream == null) {
+      return (buffer != null);
+    }
+    
+    // Read the body from the stream
+    final byte[] data = new byte[bodyStreamLength];
+    try {
+      int total = 0;
+      while (total < data.length) {
+        final int numRead = bodyStream.read(data, total, data.length - total);
+        if (numRead < 0) {
+          throw new EOFException(String.format("Expected %d bytes but found %d in the body",
+              data.length, total));
+        }
+        total += numRead;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    
+    bodyStream = null;
+    buffer = data;
+    return true;
+  }
+  
+  /**
+   * Return the length of the message body, in bytes.
+   * 
+   * @return the number of bytes in the body
+   */
+  public int getMessageBodyLength() {
+    if (bodyStream != null) {
+      return bodyStreamLength;
     }
+    
+    return ((buffer == null) ? 0 : buffer.length);
   }
   
   /**
@@ -238,7 +479,7 @@ public final class Request
    * @return if there is a body
    */
   public boolean hasBody() {
-    return (buffer != null);
+    return ((buffer != null) || (bodyStream != null));
   }
   
   /**
@@ -295,9 +536,43 @@ public final class Request
     protocol = null;
     if (parameters != null) {
       parameters.clear();
-      parameters = null;
     }
     buffer = null;
+    bodyStream = null;
+  }
+  
+  /**
+   * Clear out everything, so this object can be used for the next
+   * request on the connection.  The maps and arrays are kept.
+   */
+  public void reset() {
+    cleanup();
+    bodyStreamLength = 0;
+    bodyMD5 = null;
+    rejectCode = 0;
+    url = null;
+    fragment = null;
+    header.clear();
+    if (templateVariables != null) {
+      templateVariables.clear();
+    }
+  }
+  
+  /**
+   * Return an empty response (code 200) for this request.  The
+   * server reuses one response object for every request on a
+   * connection, so a handler should return it and not keep it.
+   * 
+   * @return the response, reset
+   */
+  public Response newResponse() {
+    if (response == null) {
+      response = new Response();
+    } else {
+      response.reset();
+    }
+    
+    return response;
   }
   
   
@@ -314,13 +589,17 @@ public final class Request
       return;
     }
     
-    // If the header hasn't been allocated yet, do so now
-    if (header == null) {
-      header = new HashMap<String, String>(5);
-    }
-    
     // Store the key/value pair
-    header.put(key, value);
+    header.set(key, value);
+  }
+  
+  /**
+   * Return the header table, for the parser to fill in.
+   * 
+   * @return the header table
+   */
+  public RequestHeaders getHeaders() {
+    return header;
   }
   
   /**
@@ -333,35 +612,38 @@ public final class Request
   }
   
   /**
-   * Returns the value matching the key from the header.
+   * Returns the value matching the key from the header.  Keys are
+   * not case-sensitive.
    * 
    * @param key the key
    * @return the value for the key in the header
    */
   public String headerGetKey(final String key) {
-    if ((header == null) || (key == null)) {
-      return null;
-    }
-    
     return header.get(key);
   }
   
+  /**
+   * Return the names in the header.
+   * 
+   * @return a new set of the header names, or null if there are none
+   */
   public Set<String> getHeaderKeys() {
-    if (header == null) {
+    if (header.isEmpty()) {
       return null;
     }
     
-    return header.keySet();
+    return header.getNames();
   }
   
   /**
-   * Return whether the header contains the key.
+   * Return whether the header contains the key.  Keys are not
+   * case-sensitive.
    * 
    * @param key the key (must not be null)
    * @return if header contains the key
    */
   public boolean headerContainsKey(final String key) {
-    return ((header != null) && (key != null) && (header.containsKey(key)));
+    return header.contains(key);
   }
   
   
@@ -0,0 +1,300 @@
+package io.miti.shortstop.model;
+
+import io.miti.shortstop.util.HeaderField;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public final class RequestHeaders {
+  
+  /** The well-known request header names; each has a fixed slot. */
+  private static final String[] KNOWN_NAMES = {
+    HeaderField.REQ_ACCEPT, HeaderField.REQ_ACCEPT_CHARSET, HeaderField.REQ_ACCEPT_ENCODING,
+    HeaderField.REQ_ACCEPT_LANGUAGE, HeaderField.REQ_ACCEPT_DATETIME, HeaderField.REQ_AUTHORIZATION,
+    HeaderField.REQ_CACHE_CONTROL, HeaderField.REQ_CONNECTION, HeaderField.REQ_COOKIE,
+    HeaderField.REQ_CONTENT_LENGTH, HeaderField.REQ_CONTENT_MD5, HeaderField.REQ_CONTENT_TYPE,
+    HeaderField.REQ_DATE, HeaderField.REQ_EXPECT, HeaderField.REQ_FROM, HeaderField.REQ_HOST,
+    HeaderField.REQ_IF_MATCH, HeaderField.REQ_IF_MODIFIED_SINCE, HeaderField.REQ_IF_NONE_MATCH,
+    HeaderField.REQ_IF_RANGE, HeaderField.REQ_IF_UNMODIFIED_SINCE, HeaderField.REQ_MAX_FORWARDS,
+    HeaderField.REQ_ORIGIN, HeaderField.REQ_PRAGMA, HeaderField.REQ_PROXY_AUTHORIZATION,
+    HeaderField.REQ_RANGE, HeaderField.REQ_REFERER, HeaderField.REQ_TE,
+    HeaderField.REQ_TRANSFER_ENCODING, HeaderField.REQ_USER_AGENT, HeaderField.REQ_UPGRADE,
+    HeaderField.REQ_VIA, HeaderField.REQ_WARNING
+  };
+  
+  /** The number of well-known names. */
+  private static final int NUM_KNOWN = KNOWN_NAMES.length;
+  
+  /** Marks a header that isn't present. */
+  private static final int ABSENT = -1;
+  
+  /** Marks a header whose value was set as a string, not parsed. */
+  private static final int SET = -2;
+  
+  /** The bytes of the header lines, which the values are decoded from. */
+  private byte[] data = new byte[256];
+  
+  /** The offset in the parser's array of the bytes copied into data. */
+  private int base = 0;
+  
+  /** The start of each value in data (or ABSENT or SET); the well-known names come first. */
+  private int[] starts = new int[NUM_KNOWN + 8];
+  
+  /** The length of each value in data. */
+  private int[] lengths = new int[NUM_KNOWN + 8];
+  
+  /** Each value as a string, made when it's first asked for. */
+  private String[] values = new String[NUM_KNOWN + 8];
+  
+  /** The names of the headers that aren't well-known, in the order received. */
+  private String[] otherNames = new String[8];
+  
+  /** The number of headers that aren't well-known. */
+  private int numOther = 0;
+  
+  /**
+   * Default constructor.
+   */
+  public RequestHeaders() {
+    Arrays.fill(starts, ABSENT);
+  }
+  
+  /**
+   * Return the number of well-known header names.
+   * 
+   * @return the number of well-known names
+   */
+  public static int getKnownCount() {
+    return NUM_KNOWN;
+  }
+  
+  /**
+   * Return a well-known header name.
+   * 
+   * @param slot the slot of the name
+   * @return the header name
+   */
+  public static String getKnownName(final int slot) {
+    return KNOWN_NAMES[slot];
+  }
+  
+  /**
+   * Return the slot for a well-known header name.  The name is not
+   * case-sensitive.
+   * 
+   * @param name the header name
+   * @return the slot, or -1 if the name isn't well-known
+   */
+  public static int slotOf(final String name) {
+    for (int i = 0; i < NUM_KNOWN; ++i) {
+      if (KNOWN_NAMES[i] == name) {
+        return i;
+      }
+    }
+    
+    for (int i = 0; i < NUM_KNOWN; ++i) {
+      if (KNOWN_NAMES[i].equalsIgnoreCase(name)) {
+        return i;
+      }
+    }
+    
+    return -1;
+  }
+  
+  /**
+   * Copy the bytes of the header lines, before the parser adds the
+   * values in them.  The parser's array can then be reused.
+   * 
+   * @param src the parser's array
+   * @param offset the start of the header lines
+   * @param length the length of the header lines
+   */
+  public void setData(final byte[] src, final int offset, final int length) {
+    if (data.length < length) {
+      data = new byte[Math.max(length, data.length * 2)];
+    }
+    
+    System.arraycopy(src, offset, data, 0, length);
+    base = offset;
+  }
+  
+  /**
+   * Add the value of a well-known header, as a range of the bytes
+   * passed to setData().  If the header was already added, the new
+   * value replaces it.
+   * 
+   * @param slot the slot of the header name
+   * @param start the start of the value, in the parser's array
+   * @param end the end of the value (exclusive), in the parser's array
+   */
+  public void addKnown(final int slot, final int start, final int end) {
+    starts[slot] = start - base;
+    lengths[slot] = end - start;
+    values[slot] = null;
+  }
+  
+  /**
+   * Add the value of a header that isn't well-known, as a range of
+   * the bytes passed to setData().  If the header was already added,
+   * the new value replaces it.
+   * 
+   * @param name the header name
+   * @param start the start of the value, in the parser's array
+   * @param end the end of the value (exclusive), in the parser's array
+   */
+  public void addOther(final String name, final int start, final int end) {
+    final int index = otherIndex(name);
+    starts[index] = start - base;
+    lengths[index] = end - start;
+    values[index] = null;
+  }
+  
+  /**
+   * Set the value of a header.  If the header was already added, the
+   * new value replaces it.
+   * 
+   * @param name the header name
+   * @param value the value
+   */
+  public void set(final String name, final String value) {
+    final int slot = slotOf(name);
+    final int index = (slot >= 0) ? slot : otherIndex(name);
+    starts[index] = SET;
+    values[index] = value;
+  }
+  
+  /**
+   * Return the value of a header.  The name is not case-sensitive.
+   * The string is only made the first time it's asked for.
+   * 
+   * @param name the header name
+   * @return the value, or null if the header isn't present
+   */
+  public String get(final String name) {
+    final int index = indexOf(name);
+    if ((index < 0) || (starts[index] == ABSENT)) {
+      return null;
+    }
+    
+    if (values[index] == null) {
+      values[index] = new String(data, starts[index], lengths[index], StandardCharsets.ISO_8859_1);
+    }
+    
+    return values[index];
+  }
+  
+  /**
+   * Return whether a header is present.  The name is not case-sensitive.
+   * 
+   * @param name the header name
+   * @return whether the header is present
+   */
+  public boolean contains(final String name) {
+    final int index = indexOf(name);
+    return ((index >= 0) && (starts[index] != ABSENT));
+  }
+  
+  /**
+   * Return whether there are no headers.
+   * 
+   * @return whether there are no headers
+   */
+  public boolean isEmpty() {
+    if (numOther > 0) {
+      return false;
+    }
+    
+    for (int i = 0; i < NUM_KNOWN; ++i) {
+      if (starts[i] != ABSENT) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Return the names of the headers that are present: the well-known
+   * names first, then the others in the order received.
+   * 
+   * @return a new set of the header names
+   */
+  public Set<String> getNames() {
+    final Set<String> names = new LinkedHashSet<String>(NUM_KNOWN + numOther);
+    for (int i = 0; i < NUM_KNOWN; ++i) {
+      if (starts[i] != ABSENT) {
+        names.add(KNOWN_NAMES[i]);
+      }
+    }
+    for (int i = 0; i < numOther; ++i) {
+      names.add(otherNames[i]);
+    }
+    
+    return names;
+  }
+  
+  /**
+   * Remove all headers.  The arrays are kept, to be reused.
+   */
+  public void clear() {
+    final int count = NUM_KNOWN + numOther;
+    Arrays.fill(starts, 0, count, ABSENT);
+    Arrays.fill(values, 0, count, null);
+    Arrays.fill(otherNames, 0, numOther, null);
+    numOther = 0;
+  }
+  
+  /**
+   * Return the index of the value for a header name.
+   * 
+   * @param name the header name
+   * @return the index, or -1 if it's neither well-known nor present
+   */
+  private int indexOf(final String name) {
+    if (name == null) {
+      return -1;
+    }
+    
+    final int slot = slotOf(name);
+    if (slot >= 0) {
+      return slot;
+    }
+    
+    for (int i = 0; i < numOther; ++i) {
+      if (otherNames[i].equalsIgnoreCase(name)) {
+        return NUM_KNOWN + i;
+      }
+    }
+    
+    return -1;
+  }
+  
+  /**
+   * Return the index of the value for a header that isn't
+   * well-known, adding the name if it's not already present.
+   * 
+   * @param name the header name
+   * @return the index
+   */
+  private int otherIndex(final String name) {
+    for (int i = 0; i < numOther; ++i) {
+      if (otherNames[i].equalsIgnoreCase(name)) {
+        return NUM_KNOWN + i;
+      }
+    }
+    
+    // Make room for another header
+    if (numOther == otherNames.length) {
+      final int size = numOther * 2;
+      otherNames = Arrays.copyOf(otherNames, size);
+      starts = Arrays.copyOf(starts, NUM_KNOWN + size);
+      lengths = Arrays.copyOf(lengths, NUM_KNOWN + size);
+      values = Arrays.copyOf(values, NUM_KNOWN + size);
+    }
+    
+    otherNames[numOther] = name;
+    return NUM_KNOWN + numOther++;
+  }
+}
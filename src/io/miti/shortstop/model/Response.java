@@ -1,16 +1,24 @@
 package io.miti.shortstop.model;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
 
 import io.miti.shortstop.util.ContentTypeCache;
+import io.miti.shortstop.util.DefaultHeaders;
+import io.miti.shortstop.util.FileDigestCache;
 import io.miti.shortstop.util.HeaderField;
+import io.miti.shortstop.util.HttpDate;
 import io.miti.shortstop.util.ResponseCodeCache;
 import io.miti.shortstop.util.Utility;
 
@@ -22,12 +30,45 @@ public final class Response
   /** The status message. */
   private String msg = "OK";
   
-  /** The header map. */
-  private Map<String, String> header = null;
+  /** The headers, in the order they were added. */
+  private final HeaderList header = new HeaderList();
+  
+  /** The default headers still in effect, as bits (see DefaultHeaders). */
+  private int defaults = DefaultHeaders.ALL;
   
   /** The response body. */
   private byte[] body = null;
   
+  /** The file holding the response body, sent without copying it into memory. */
+  private File bodyFile = null;
+  
+  /** The number of bytes of the body sent from the file (with any part heads). */
+  private long bodyFileLength = 0L;
+  
+  /** The ranges of the body file that are sent, as pairs of position and length; or null for the whole file. */
+  private long[] bodyFileRanges = null;
+  
+  /** The heads of the parts of a multipart/byteranges body, with the closing boundary last; or null. */
+  private byte[][] bodyFileParts = null;
+  
+  /** A mapping of the body file, that the body is sent from instead of the file; or null. */
+  private ByteBuffer bodyFileMapping = null;
+  
+  /** Closed when the response is done with the mapping (so it can be unmapped); or null. */
+  private Closeable bodyFileOwner = null;
+  
+  /** Writes the body as it's produced, when the length isn't known in advance. */
+  private BodyWriter bodyWriter = null;
+  
+  /** The base-64 MD5 hash of the body, once it has been computed. */
+  private String bodyMD5 = null;
+  
+  /** The already-encoded status line and headers, or null; see setEncoded(). */
+  private EncodedHead encoded = null;
+  
+  /** Whether only the status line and headers are sent, and not the body. */
+  private boolean headOnly = false;
+  
   /**
    * Default constructor.
    */
@@ -45,6 +86,89 @@ public final class Response
     setCode(nCode);
   }
   
+  /**
+   * Clear out everything, so this object can be used for the next
+   * response.  The header arrays are kept.
+   * 
+   * @return this
+   */
+  public Response reset() {
+    code = 200;
+    msg = "OK";
+    header.clear();
+    defaults = DefaultHeaders.ALL;
+    body = null;
+    clearBodyFile();
+    bodyWriter = null;
+    bodyMD5 = null;
+    encoded = null;
+    headOnly = false;
+    
+    return this;
+  }
+  
+  /**
+   * Make this a copy of a response that was encoded earlier (such as
+   * one kept in a cache), without encoding its headers again.  The
+   * head and body are shared, not copied, and must not be changed.
+   * Headers that are added later, which aren't in the encoded head
+   * (such as Connection), are sent after it.  Anything that changes
+   * the encoded part (the code, the body, or an encoded header) turns
+   * this back into an ordinary response first.
+   * 
+   * @param head the encoded status line and headers
+   * @param sBody the body
+   * @param md5 the base-64 MD5 hash of the body, or null
+   * @return this
+   */
+  public Response setEncoded(final EncodedHead head, final byte[] sBody, final String md5) {
+    reset();
+    code = head.getCode();
+    msg = head.getMessage();
+    defaults = head.getDefaults();
+    body = sBody;
+    bodyMD5 = md5;
+    encoded = head;
+    
+    return this;
+  }
+  
+  /**
+   * Return the encoded status line and headers, if this response is
+   * a copy of one that was encoded earlier.
+   * 
+   * @return the encoded head, or null
+   */
+  public EncodedHead getEncoded() {
+    return encoded;
+  }
+  
+  /**
+   * If this response is a copy of an encoded one, turn it back into
+   * an ordinary response, by copying the encoded headers into the
+   * header, before the headers added since.
+   */
+  private void thaw() {
+    if (encoded == null) {
+      return;
+    }
+    
+    final HeaderList added = new HeaderList();
+    for (int i = 0; i < header.size(); ++i) {
+      added.add(header.getName(i), header.getValue(i));
+    }
+    
+    header.clear();
+    final HeaderList encodedHeaders = encoded.getHeaders();
+    for (int i = 0; i < encodedHeaders.size(); ++i) {
+      header.add(encodedHeaders.getName(i), encodedHeaders.getValue(i));
+    }
+    for (int i = 0; i < added.size(); ++i) {
+      header.add(added.getName(i), added.getValue(i));
+    }
+    encoded = null;
+  }
+  
   /**
    * Get the status code.
    * 
@@ -61,6 +185,7 @@ public final class Response
    * @return this
    */
   public Response setCode(final int nCode) {
+    thaw();
     code = nCode;
     
     // Look up the standard description of the code
@@ -89,6 +214,7 @@ public final class Response
       return this;
     }
     
+    thaw();
     msg = sMsg.trim();
     
     return this;
@@ -117,9 +243,13 @@ public final class Response
    * @return this
    */
   public Response setBodyAsBytes(final byte[] sBody) {
+    thaw();
     
     // Save the new body
     body = (sBody == null) ? null : sBody;
+    clearBodyFile();
+    bodyWriter = null;
+    bodyMD5 = null;
     
     // Update the content length
     final int size = (body == null) ? 0 : body.length;
@@ -129,7 +259,298 @@ public final class Response
   }
   
   /**
-   * Return the body.
+   * Set the response body to the contents of a file.  The server
+   * sends the file straight from disk to the socket (sendfile),
+   * without reading it into memory.  An ETag and Last-Modified
+   * date are set from the file's length and modification time, so
+   * clients can make conditional requests.  If the file does not
+   * exist, the response is set to 404.
+   * 
+   * @param file the file to send
+   * @return this
+   */
+  public Response setBodyAsFile(final File file) {
+    if ((file == null) || !file.isFile()) {
+      return setAs404();
+    }
+    
+    thaw();
+    // Save the file and its length; the length is also the content length
+    body = null;
+    bodyWriter = null;
+    bodyMD5 = null;
+    clearBodyFile();
+    bodyFile = file;
+    bodyFileLength = file.length();
+    addToHeader(HeaderField.RES_CONTENT_LENGTH, bodyFileLength);
+    
+    // Set the validators
+    final long lastModified = file.lastModified();
+    addToHeader(HeaderField.RES_ETAG, getFileETag(bodyFileLength, lastModified));
+    addToHeader(HeaderField.RES_LAST_MODIFIED, HttpDate.format(lastModified));
+    
+    return this;
+  }
+  
+  /**
+   * Set the response body to a file that is mapped into memory.  It
+   * is sent like any file body (including ranges of it), but from
+   * the mapping rather than the file, so the file isn't read or even
+   * checked here.  The caller sets the validators.  The owner is
+   * closed when the response no longer needs the mapping, unless the
+   * server takes it to close once the body is written.
+   * 
+   * @param file the mapped file
+   * @param mapping the mapping of the whole file
+   * @param owner closed when the mapping isn't needed, or null
+   * @return this
+   */
+  public Response setBodyAsMappedFile(final File file, final ByteBuffer mapping,
+                                      final Closeable owner) {
+    thaw();
+    body = null;
+    bodyWriter = null;
+    bodyMD5 = null;
+    clearBodyFile();
+    bodyFile = file;
+    bodyFileLength = mapping.remaining();
+    bodyFileMapping = mapping;
+    bodyFileOwner = owner;
+    addToHeader(HeaderField.RES_CONTENT_LENGTH, bodyFileLength);
+    
+    return this;
+  }
+  
+  /**
+   * Return a range of the mapped body file, as a read-only view.
+   * Nothing is copied.
+   * 
+   * @param index the index of the range
+   * @return the range, or null if the body file isn't mapped
+   */
+  public ByteBuffer getBodyFileMapping(final int index) {
+    if (bodyFileMapping == null) {
+      return null;
+    }
+    
+    return bodyFileMapping.slice((int) getBodyFileRangeStart(index),
+        (int) getBodyFileRangeLength(index)).asReadOnlyBuffer();
+  }
+  
+  /**
+   * Take the owner of the mapped body file, so the response won't
+   * close it; the caller must close it once the body is written.
+   * 
+   * @return the owner, or null
+   */
+  public Closeable takeBodyFileOwner() {
+    final Closeable owner = bodyFileOwner;
+    bodyFileOwner = null;
+    return owner;
+  }
+  
+  /**
+   * Drop the body file, closing the owner of any mapping of it.
+   */
+  private void clearBodyFile() {
+    bodyFile = null;
+    bodyFileLength = 0L;
+    bodyFileRanges = null;
+    bodyFileParts = null;
+    bodyFileMapping = null;
+    if (bodyFileOwner != null) {
+      try {
+        bodyFileOwner.close();
+      } catch (IOException e) {
+        System.out.println("IOException: " + e.getMessage());
+      }
+      bodyFileOwner = null;
+    }
+  }
+  
+  /**
+   * Return the file holding the body, if the body was set as a file.
+   * 
+   * @return the body file, or null
+   */
+  public File getBodyFile() {
+    return bodyFile;
+  }
+  
+  /**
+   * Return the number of bytes of the body that are sent from the
+   * file.  For a multipart/byteranges body, this includes the heads
+   * of the parts.
+   * 
+   * @return the length of the body, or zero if there is no body file
+   */
+  public long getBodyFileLength() {
+    return bodyFileLength;
+  }
+  
+  /**
+   * Send only some ranges of the body file, as a 206 (Partial
+   * Content) response.  One range is sent with a Content-Range
+   * header; several are sent as a multipart/byteranges body, each
+   * part with its own Content-Type and Content-Range.  This must be
+   * called after setBodyAsFile(), and only once.
+   * 
+   * @param ranges pairs of position and length, inside the file (see ByteRanges)
+   * @return this
+   */
+  public Response setBodyFileRanges(final long[] ranges) {
+    if ((bodyFile == null) || (bodyFileRanges != null) || (ranges == null) || (ranges.length < 2)) {
+      return this;
+    }
+    
+    final long fileLength = bodyFileLength;
+    setCode(206);
+    bodyMD5 = null;
+    bodyFileRanges = ranges;
+    if (ranges.length == 2) {
+      // A single range
+      bodyFileLength = ranges[1];
+      addToHeader(HeaderField.RES_CONTENT_RANGE, formatRange(ranges[0], ranges[1], fileLength));
+      addToHeader(HeaderField.RES_CONTENT_LENGTH, bodyFileLength);
+      return this;
+    }
+    
+    // Several ranges: make the head of each part, and the closing boundary
+    final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+    final String partType = headerGetKey(HeaderField.RES_CONTENT_TYPE);
+    final int count = ranges.length / 2;
+    bodyFileParts = new byte[count + 1][];
+    long total = 0L;
+    for (int i = 0; i < count; ++i) {
+      final StringBuilder sb = new StringBuilder(100);
+      sb.append((i == 0) ? "--" : "\r\n--").append(boundary).append("\r\n");
+      if (partType != null) {
+        sb.append(HeaderField.RES_CONTENT_TYPE).append(": ").append(partType).append("\r\n");
+      }
+      sb.append(HeaderField.RES_CONTENT_RANGE).append(": ")
+        .append(formatRange(ranges[i * 2], ranges[(i * 2) + 1], fileLength)).append("\r\n\r\n");
+      bodyFileParts[i] = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+      total += bodyFileParts[i].length + ranges[(i * 2) + 1];
+    }
+    bodyFileParts[count] = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    total += bodyFileParts[count].length;
+    
+    bodyFileLength = total;
+    addToHeader(HeaderField.RES_CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+    addToHeader(HeaderField.RES_CONTENT_LENGTH, bodyFileLength);
+    
+    return this;
+  }
+  
+  /**
+   * Format the value of a Content-Range header.
+   * 
+   * @param start the first position of the range
+   * @param length the length of the range
+   * @param fileLength the length of the file
+   * @return the header value (e.g., "bytes 0-499/1234")
+   */
+  private static String formatRange(final long start, final long length, final long fileLength) {
+    return "bytes " + start + "-" + (start + length - 1L) + "/" + fileLength;
+  }
+  
+  /**
+   * Return the number of ranges of the body file that are sent.
+   * 
+   * @return the number of ranges (1 for the whole file)
+   */
+  public int getBodyFileRangeCount() {
+    return ((bodyFileRanges == null) ? 1 : (bodyFileRanges.length / 2));
+  }
+  
+  /**
+   * Return the position in the file of a range that is sent.
+   * 
+   * @param index the index of the range
+   * @return the position of its first byte
+   */
+  public long getBodyFileRangeStart(final int index) {
+    return ((bodyFileRanges == null) ? 0L : bodyFileRanges[index * 2]);
+  }
+  
+  /**
+   * Return the length of a range of the file that is sent.
+   * 
+   * @param index the index of the range
+   * @return the number of bytes in the range
+   */
+  public long getBodyFileRangeLength(final int index) {
+    return ((bodyFileRanges == null) ? bodyFileLength : bodyFileRanges[(index * 2) + 1]);
+  }
+  
+  /**
+   * Return the bytes sent before a range of the file: the head of
+   * its part in a multipart/byteranges body.  The index after the
+   * last range returns the closing boundary.
+   * 
+   * @param index the index of the range
+   * @return the bytes, or null if there are none
+   */
+  public byte[] getBodyFilePart(final int index) {
+    return ((bodyFileParts == null) ? null : bodyFileParts[index]);
+  }
+  
+  /**
+   * Return if the body is a file.
+   * 
+   * @return if the response has a body file
+   */
+  public boolean hasBodyFile() {
+    return (bodyFile != null);
+  }
+  
+  /**
+   * Set the response body to be written by the handler as it's
+   * produced.  The body is sent to HTTP/1.1 clients with chunked
+   * transfer-encoding, so there is no content length; the server
+   * calls the writer when it sends the response, and anything the
+   * writer flushes is sent right away.  For HTTP/1.0 clients the
+   * body is ended by closing the connection.
+   * 
+   * @param writer writes the body to the stream it's given
+   * @return this
+   */
+  public Response setBodyWriter(final BodyWriter writer) {
+    if (writer == null) {
+      return setBodyAsBytes(null);
+    }
+    
+    thaw();
+    body = null;
+    clearBodyFile();
+    bodyWriter = writer;
+    bodyMD5 = null;
+    removeFromHeader(HeaderField.RES_CONTENT_LENGTH);
+    
+    return this;
+  }
+  
+  /**
+   * Return the writer for the body, if the body is streamed.
+   * 
+   * @return the body writer, or null
+   */
+  public BodyWriter getBodyWriter() {
+    return bodyWriter;
+  }
+  
+  /**
+   * Return if the body is written by a body writer.
+   * 
+   * @return if the response has a body writer
+   */
+  public boolean hasBodyWriter() {
+    return (bodyWriter != null);
+  }
+  
+  /**
+   * Return a copy of the body.  To read it without copying, use
+   * getBodyBuffer().
    * 
    * @return the body
    */
@@ -143,7 +564,38 @@ public final class Response
   }
   
   /**
-   * Add a key/value pair to the header.
+   * Return the body, as a read-only view.  Nothing is copied.
+   * 
+   * @return the body, or null if there is none in memory
+   */
+  public ByteBuffer getBodyBuffer() {
+    return ((body == null) ? null : ByteBuffer.wrap(body).asReadOnlyBuffer());
+  }
+  
+  /**
+   * Return the length of the body in memory.
+   * 
+   * @return the number of bytes in the body
+   */
+  public int getBodyLength() {
+    return ((body == null) ? 0 : body.length);
+  }
+  
+  /**
+   * Write the body to a stream, without copying it.
+   * 
+   * @param out the stream
+   * @throws IOException if writing fails
+   */
+  public void writeBody(final OutputStream out) throws IOException {
+    if (body != null) {
+      out.write(body);
+    }
+  }
+  
+  /**
+   * Add a key/value pair to the header, replacing any value the key
+   * already has.  Keys are not case-sensitive.
    * 
    * @param key the key
    * @param value the value
@@ -156,13 +608,37 @@ public final class Response
       return this;
     }
     
-    // If the header hasn't been allocated yet, do so now
-    if (header == null) {
-      header = new HashMap<String, String>(5);
-    }
+    // A header set here replaces the default, or the encoded one
+    thawIfEncoded(key);
+    defaults &= ~DefaultHeaders.maskOf(key);
     
     // Store the key/value pair
-    header.put(key, value);
+    header.set(key, value);
+    
+    return this;
+  }
+  
+  /**
+   * Add a key/value pair to the header, keeping any values the key
+   * already has.  Use this for headers that can repeat, such as
+   * Set-Cookie.
+   * 
+   * @param key the key
+   * @param value the value
+   * @return this
+   */
+  public Response appendToHeader(final String key, final String value) {
+    
+    // Skip null/empty keys
+    if ((key == null) || key.isEmpty() || (value == null) || value.isEmpty()) {
+      return this;
+    }
+    
+    // A header set here replaces the default; the encoded headers are
+    // copied first, so an encoded value is kept
+    thawIfEncoded(key);
+    defaults &= ~DefaultHeaders.maskOf(key);
+    header.add(key, value);
     
     return this;
   }
@@ -178,16 +654,142 @@ public final class Response
   }
   
   /**
-   * Get the keyset of header pairs.
+   * Helper method for adding a key/value pair for a long value.
+   * 
+   * @param key the key
+   * @param value the value as a long
+   */
+  public void addToHeader(final String key, final long value) {
+    addToHeader(key, Long.toString(value));
+  }
+  
+  /**
+   * Remove a key from the header.
+   * 
+   * @param key the key
+   * @return this
+   */
+  public Response removeFromHeader(final String key) {
+    if (key == null) {
+      return this;
+    }
+    
+    thawIfEncoded(key);
+    defaults &= ~DefaultHeaders.maskOf(key);
+    header.remove(key);
+    
+    return this;
+  }
+  
+  /**
+   * Turn this response back into an ordinary one, if a header being
+   * changed was encoded.
+   * 
+   * @param key the header name
+   */
+  private void thawIfEncoded(final String key) {
+    if ((encoded != null) && (encoded.getHeaders().get(key) != null)) {
+      thaw();
+    }
+  }
+  
+  /**
+   * Returns the value matching the key from the header.  If the key
+   * has more than one value, the first is returned.  Keys are not
+   * case-sensitive.
+   * 
+   * @param key the key
+   * @return the value for the key in the header, or null
+   */
+  public String headerGetKey(final String key) {
+    if (key == null) {
+      return null;
+    }
+    
+    // Check the headers that were set, then any encoded ones, then the defaults
+    final String value = header.get(key);
+    if (value != null) {
+      return value;
+    } else if (encoded != null) {
+      final String encodedValue = encoded.getHeaders().get(key);
+      if (encodedValue != null) {
+        return encodedValue;
+      }
+    }
+    
+    final int mask = DefaultHeaders.maskOf(key);
+    if ((defaults & mask) == 0) {
+      return null;
+    }
+    
+    return DefaultHeaders.getValue(Integer.numberOfTrailingZeros(mask));
+  }
+  
+  /**
+   * Get the headers that were set on this response, in order.  The
+   * default headers still in effect are not included; see
+   * getDefaultHeaders().
+   * 
+   * @return the headers
+   */
+  public HeaderList getHeaders() {
+    return header;
+  }
+  
+  /**
+   * Get the header pairs, in the order they're sent: the default
+   * headers still in effect, then the ones that were set.  If a header
+   * has more than one value, only the first is included.
    * 
    * @return the header entries
+   * @deprecated use getHeaders() and getDefaultHeaders(), which keep
+   *             every value of a repeated header
    */
+  @Deprecated
   public Set<Entry<String, String>> getHeaderIterator() {
-    if (header == null) {
-      return null;
+    final Map<String, String> map = new LinkedHashMap<String, String>(32);
+    final Set<String> names = new HashSet<String>(32);
+    for (int i = 0; i < DefaultHeaders.COUNT; ++i) {
+      if ((defaults & (1 << i)) != 0) {
+        final String name = DefaultHeaders.getName(i);
+        names.add(name.toLowerCase(Locale.US));
+        map.put(name, DefaultHeaders.isDate(i) ? HttpDate.now() : DefaultHeaders.getValue(i));
+      }
+    }
+    
+    if (encoded != null) {
+      addFirstValues(encoded.getHeaders(), map, names);
     }
+    addFirstValues(header, map, names);
     
-    return header.entrySet();
+    return map.entrySet();
+  }
+  
+  /**
+   * Add the first value of each header in a list to a map, skipping
+   * names already in the map.
+   * 
+   * @param list the headers
+   * @param map the map to add to
+   * @param names the lower-case names already in the map
+   */
+  private static void addFirstValues(final HeaderList list, final Map<String, String> map,
+                                     final Set<String> names) {
+    for (int i = 0; i < list.size(); ++i) {
+      if (names.add(list.getName(i).toLowerCase(Locale.US))) {
+        map.put(list.getName(i), list.getValue(i));
+      }
+    }
+  }
+  
+  /**
+   * Return the default headers still in effect, as bits.  Bit N is
+   * set if default header N (see DefaultHeaders) should be sent.
+   * 
+   * @return the default headers still in effect
+   */
+  public int getDefaultHeaders() {
+    return defaults;
   }
   
   /**
@@ -232,29 +834,23 @@ public final class Response
   }
   
   /**
-   * Set the default values.
+   * Set the default values.  The default headers aren't stored; they
+   * are added when the response is sent, unless they were replaced
+   * or removed, and the Date is only formatted once per second.
    * 
    * @return this
    */
   public Response setDefaults() {
-    setPlainTextContentType();
-    addToHeader(HeaderField.RES_SERVER, "Shortstop Web Server 0.1");
-    addToHeader(HeaderField.RES_CONTENT_LENGTH, 0);
-    addToHeader(HeaderField.RES_CONNECTION, "close");
-    addToHeader(HeaderField.RES_CACHE_CONTROL, "no-cache, no-store, max-age=0, must-revalidate");
-    addToHeader(HeaderField.RES_PRAGMA, "no-cache");
-    addToHeader(HeaderField.RES_EXPIRES, 0);
-    addToHeader("X-Content-Type-Options", "nosniff");
-    addToHeader("X-XSS-Protection", "1; mode=block");
-    // addToHeader(HeaderField.RES_CONTENT_MD5, <compute MD5 after content encoding?>);
-    
-    // Set date fields
-    final SimpleDateFormat sdf = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss z");
-    sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
-    final Date date = new Date();
-    String dateStr = sdf.format(date);
-    addToHeader(HeaderField.RES_DATE, dateStr);
-    addToHeader(HeaderField.RES_LAST_MODIFIED, dateStr);
+    thaw();
+    
+    // Drop any headers that were set in place of the defaults
+    if (!header.isEmpty()) {
+      for (int i = 0; i < DefaultHeaders.COUNT; ++i) {
+        header.remove(DefaultHeaders.getName(i));
+      }
+    }
+    
+    defaults = DefaultHeaders.ALL;
     
     return this;
   }
@@ -282,17 +878,132 @@ public final class Response
     return ((body != null) && (body.length > 0));
   }
   
+  
+  /**
+   * Send only the status line and headers, and not the body.  This
+   * is for a HEAD request, which gets the headers (including the
+   * Content-Length) that a GET would, and for statuses that never
+   * have a body.
+   * 
+   * @return this
+   */
+  public Response setHeadOnly() {
+    headOnly = true;
+    
+    return this;
+  }
+  
+  
+  /**
+   * Return whether only the status line and headers are sent.
+   * 
+   * @return whether the body is not sent
+   */
+  public boolean isHeadOnly() {
+    return headOnly;
+  }
+  
+  /**
+   * Return the ETag for a file, made from its length and
+   * modification time.
+   * 
+   * @param length the length of the file
+   * @param lastModified the time the file was last modified
+   * @return the ETag, with its quotes
+   */
+  public static String getFileETag(final long length, final long lastModified) {
+    return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+  }
+  
   /**
    * Add the MD5 hash to the header.
    * 
    * @return this
    */
   public Response addMD5() {
-    if (body != null) {
-      final String md5 = Utility.getMD5(body);
-      header.put(HeaderField.RES_CONTENT_MD5, md5);
+    addToHeader(HeaderField.RES_CONTENT_MD5, getBodyMD5());
+    return this;
+  }
+  
+  /**
+   * Return the MD5 hash of the body (in memory or in a file).  The
+   * hash is computed once, and kept until the body changes.
+   * 
+   * @return the base-64 MD5 hash, or null if there's no body to hash
+   */
+  public String getBodyMD5() {
+    if (bodyMD5 == null) {
+      if (body != null) {
+        bodyMD5 = Utility.getMD5(body);
+      } else if ((bodyFile != null) && (bodyFileRanges == null)) {
+        bodyMD5 = FileDigestCache.getCache().getMD5(bodyFile);
+      }
+    }
+    
+    return bodyMD5;
+  }
+  
+  /**
+   * Set the MD5 hash of the body, when it's already known (such as
+   * for a cached file), so it isn't computed again.  It's cleared
+   * when the body changes.
+   * 
+   * @param md5 the base-64 MD5 hash of the body
+   * @return this
+   */
+  public Response setBodyMD5(final String md5) {
+    bodyMD5 = md5;
+    return this;
+  }
+  
+  /**
+   * Add an ETag made from the MD5 hash of the body, if the response
+   * has a body in memory and no ETag yet.
+   * 
+   * @return this
+   */
+  public Response addETagFromBody() {
+    if ((body != null) && (headerGetKey(HeaderField.RES_ETAG) == null)) {
+      addToHeader(HeaderField.RES_ETAG, "\"" + getBodyMD5() + "\"");
     }
     
     return this;
   }
+  
+  /**
+   * Turn this response into a 416 (Range Not Satisfiable), with no
+   * body, for a request whose ranges are all past the end of the file.
+   * 
+   * @param fileLength the length of the file
+   * @return this
+   */
+  public Response setAsRangeNotSatisfiable(final long fileLength) {
+    setCode(416);
+    setBodyAsBytes(null);
+    removeFromHeader(HeaderField.RES_CONTENT_TYPE);
+    addToHeader(HeaderField.RES_CONTENT_RANGE, "bytes */" + fileLength);
+    
+    return this;
+  }
+  
+  /**
+   * Turn this response into a 304 (Not Modified), with no body.
+   * The validators and caching headers are kept, but the headers
+   * that describe the body are removed.
+   * 
+   * @return this
+   */
+  public Response setAsNotModified() {
+    setCode(304);
+    body = null;
+    clearBodyFile();
+    bodyWriter = null;
+    bodyMD5 = null;
+    removeFromHeader(HeaderField.RES_CONTENT_LENGTH);
+    removeFromHeader(HeaderField.RES_CONTENT_TYPE);
+    removeFromHeader(HeaderField.RES_CONTENT_MD5);
+    removeFromHeader(HeaderField.RES_TRANSFER_ENCODING);
+    
+    return this;
+  }
 }
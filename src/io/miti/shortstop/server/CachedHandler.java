@@ -0,0 +1,209 @@
+package io.miti.shortstop.server;
+
+import io.miti.shortstop.model.EncodedHead;
+import io.miti.shortstop.model.Request;
+import io.miti.shortstop.model.RequestInterface;
+import io.miti.shortstop.model.Response;
+import io.miti.shortstop.util.DefaultHeaders;
+import io.miti.shortstop.util.HeaderField;
+import io.miti.shortstop.util.Utility;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+public final class CachedHandler implements RequestInterface {
+  
+  /** The most responses kept for one handler. */
+  public static final int MAX_ENTRIES = 1024;
+  
+  /** Responses with a larger body than this aren't kept. */
+  public static final int MAX_BODY = 1024 * 1024;
+  
+  /** The default headers that are written each time a response is sent. */
+  private static final int LIVE_DEFAULTS = (1 << DefaultHeaders.DATE)
+      | DefaultHeaders.maskOf(HeaderField.RES_CONNECTION);
+  
+  /** The handler whose responses are kept. */
+  private final RequestInterface handler;
+  
+  /** How long a response is kept, in milliseconds. */
+  private final long ttl;
+  
+  /** The request headers that are part of the key, as well as the URL and parameters. */
+  private final String[] keyHeaders;
+  
+  /** The map of key to response, in least-recently-used order (guarded by itself). */
+  private final LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  
+  /**
+   * A response, encoded, and when it expires.
+   */
+  private static final class Entry {
+    
+    /** The status line and headers. */
+    private final EncodedHead head;
+    
+    /** The body. */
+    private final byte[] body;
+    
+    /** The base-64 MD5 hash of the body. */
+    private final String md5;
+    
+    /** When the response expires, in milliseconds. */
+    private final long expires;
+    
+    /**
+     * Constructor.
+     * 
+     * @param head the status line and headers
+     * @param body the body
+     * @param md5 the base-64 MD5 hash of the body
+     * @param expires when the response expires
+     */
+    private Entry(final EncodedHead head, final byte[] body, final String md5, final long expires) {
+      this.head = head;
+      this.body = body;
+      this.md5 = md5;
+      this.expires = expires;
+    }
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param handler the handler whose responses are kept
+   * @param ttl how long a response is kept, in milliseconds
+   * @param keyHeaders the request headers that select a different response
+   */
+  public CachedHandler(final RequestInterface handler, final long ttl, final String... keyHeaders) {
+    this.handler = handler;
+    this.ttl = ttl;
+    this.keyHeaders = (keyHeaders == null) ? new String[0] : keyHeaders.clone();
+  }
+  
+  /**
+   * Return the kept response for the request if there is one that
+   * hasn't expired, without calling the handler.  Otherwise call the
+   * handler, and keep its response if it can be reused: a 200 with
+   * its body in memory, and no cookie or Cache-Control of no-store
+   * or private.  The status line and headers are kept encoded.
+   * 
+   * @param request the request
+   * @return the response
+   */
+  @Override
+  public Response process(final Request request) {
+    final String key = makeKey(request);
+    final long now = System.currentTimeMillis();
+    Entry entry = null;
+    synchronized (map) {
+      entry = map.get(key);
+      if ((entry != null) && (entry.expires <= now)) {
+        map.remove(key);
+        entry = null;
+      }
+    }
+    
+    if (entry != null) {
+      return request.newResponse().setEncoded(entry.head, entry.body, entry.md5);
+    }
+    
+    // Call the handler, and keep the response if we can
+    final Response response = handler.process(request);
+    if (isReusable(response)) {
+      final byte[] copy = response.getBody();
+      final byte[] body = (copy == null) ? new byte[0] : copy;
+      final EncodedHead head = new ResponseEncoder().encodeShared(response, LIVE_DEFAULTS);
+      entry = new Entry(head, body, Utility.getMD5(body), now + ttl);
+      put(key, entry);
+    }
+    
+    return response;
+  }
+  
+  /**
+   * Return whether a response can be kept and sent again.
+   * 
+   * @param response the response
+   * @return whether the response can be reused
+   */
+  private static boolean isReusable(final Response response) {
+    if ((response == null) || (response.getCode() != 200) || response.hasBodyWriter()
+        || response.hasBodyFile() || (response.getBodyLength() > MAX_BODY)
+        || (response.getEncoded() != null)
+        || (response.getHeaders().get(HeaderField.RES_SET_COOKIE) != null)) {
+      return false;
+    }
+    
+    final String cacheControl = response.getHeaders().get(HeaderField.RES_CACHE_CONTROL);
+    if (cacheControl != null) {
+      final String value = cacheControl.toLowerCase(Locale.US);
+      return (!value.contains("no-store") && !value.contains("private"));
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Make the key for a request, from its URL, its parameters (sorted
+   * by name) and the chosen headers.  Each part is prefixed with its
+   * length, so different requests can't make the same key.
+   * 
+   * @param request the request
+   * @return the key
+   */
+  private String makeKey(final Request request) {
+    final StringBuilder sb = new StringBuilder(64);
+    appendPart(sb, request.getURL());
+    
+    final Set<String> params = request.getParameterKeys();
+    if (params != null) {
+      for (String name : params) {
+        appendPart(sb, name);
+        appendPart(sb, request.getParameterByKey(name));
+      }
+    }
+    
+    sb.append('|');
+    for (String name : keyHeaders) {
+      appendPart(sb, request.headerGetKey(name));
+    }
+    
+    return sb.toString();
+  }
+  
+  /**
+   * Add a part to a key.
+   * 
+   * @param sb the key so far
+   * @param str the part, or null
+   */
+  private static void appendPart(final StringBuilder sb, final String str) {
+    if (str == null) {
+      sb.append('-');
+    } else {
+      sb.append(str.length()).append(':').append(str);
+    }
+  }
+  
+  /**
+   * Keep a response, dropping the least recently used one if we have
+   * too many.
+   * 
+   * @param key the key
+   * @param entry the response
+   */
+  private void put(final String key, final Entry entry) {
+    synchronized (map) {
+      map.put(key, entry);
+      if (map.size() > MAX_ENTRIES) {
+        final Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+        it.next();
+        it.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package io.miti.shortstop.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+public final class ChunkedOutputStream extends OutputStream {
+  
+  /** The size of the buffer; smaller writes are combined into one chunk. */
+  private static final int BUFFER_SIZE = 8 * 1024;
+  
+  /** The line ending after the chunk size and the chunk data. */
+  private static final byte[] CRLF = Shortstop.CRLF.getBytes(StandardCharsets.US_ASCII);
+  
+  /** The last chunk, with no trailer. */
+  private static final byte[] LAST_CHUNK = ("0" + Shortstop.CRLF + Shortstop.CRLF).getBytes(StandardCharsets.US_ASCII);
+  
+  /** The stream the chunks are written to. */
+  private final OutputStream out;
+  
+  /** Data waiting to be written as a chunk. */
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  
+  /** The number of bytes in the buffer. */
+  private int count = 0;
+  
+  /** Whether the last chunk has been written. */
+  private boolean finished = false;
+  
+  /**
+   * Constructor.
+   * 
+   * @param out the stream to write the chunks to
+   */
+  public ChunkedOutputStream(final OutputStream out) {
+    this.out = out;
+  }
+  
+  @Override
+  public void write(final int b) throws IOException {
+    if (finished) {
+      throw new IOException("The response body is already complete");
+    } else if (count == buffer.length) {
+      writeBuffer();
+    }
+    buffer[count++] = (byte) b;
+  }
+  
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    if (finished) {
+      throw new IOException("The response body is already complete");
+    }
+    
+    if (len > (buffer.length - count)) {
+      // Too big for the buffer, so send what's buffered and then this as its own chunk
+      writeBuffer();
+      if (len >= buffer.length) {
+        writeChunk(b, off, len);
+        return;
+      }
+    }
+    
+    System.arraycopy(b, off, buffer, count, len);
+    count += len;
+  }
+  
+  /**
+   * Send any buffered data as a chunk, and flush the underlying
+   * stream, so the client gets what has been written so far.
+   */
+  @Override
+  public void flush() throws IOException {
+    writeBuffer();
+    out.flush();
+  }
+  
+  /**
+   * Write the last chunk.  The underlying stream is not closed,
+   * since the connection may be used for more requests.
+   */
+  @Override
+  public void close() throws IOException {
+    finish();
+  }
+  
+  /**
+   * Send any buffered data and the last chunk, if not done already.
+   * 
+   * @throws IOException if writing fails
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    
+    writeBuffer();
+    out.write(LAST_CHUNK);
+    finished = true;
+  }
+  
+  /**
+   * Send the buffered data as a chunk.
+   * 
+   * @throws IOException if writing fails
+   */
+  private void writeBuffer() throws IOException {
+    if (count > 0) {
+      writeChunk(buffer, 0, count);
+      count = 0;
+    }
+  }
+  
+  /**
+   * Write one chunk: the size in hex, the data, and line endings.
+   * 
+   * @param b the data
+   * @param off the start of the data
+   * @param len the number of bytes (more than zero)
+   * @throws IOException if writing fails
+   */
+  private void writeChunk(final byte[] b, final int off, final int len) throws IOException {
+    out.write(Integer.toHexString(len).getBytes(StandardCharsets.US_ASCII));
+    out.write(CRLF);
+    out.write(b, off, len);
+    out.write(CRLF);
+  }
+}
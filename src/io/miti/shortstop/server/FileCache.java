@@ -0,0 +1,376 @@
+package io.miti.shortstop.server;
+
+import io.miti.shortstop.model.Response;
+import io.miti.shortstop.util.ContentCoding;
+import io.miti.shortstop.util.HeaderField;
+import io.miti.shortstop.util.HttpDate;
+import io.miti.shortstop.util.Utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+public final class FileCache {
+  
+  /** The gzip header: magic number, deflate, no flags or time, best compression, unknown OS. */
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 2, (byte) 0xff};
+  
+  /** The directory the files are read from. */
+  private final String directory;
+  
+  /** The most bytes of file contents kept in memory. */
+  private final long maxBytes;
+  
+  /** Files larger than this are not kept in memory. */
+  private final long maxFileBytes;
+  
+  /** How long, in milliseconds, an entry is used before the file is checked for changes. */
+  private final long checkInterval;
+  
+  /** Files smaller than this are not compressed. */
+  private final int minCompressBytes;
+  
+  /** The map of URL to the file's contents, in least-recently-used order. */
+  private final LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+  
+  /** The number of bytes of file contents (and their compressed copies) in the map (guarded by map). */
+  private long totalBytes = 0L;
+  
+  /**
+   * The contents of a file, with the validators sent with it.
+   */
+  public static final class Entry {
+    
+    /** The URL path of the file. */
+    private final String url;
+    
+    /** The contents of the file. */
+    private final byte[] contents;
+    
+    /** The contents in each coding, by ordinal; the contents if compressing doesn't help (guarded by this). */
+    private final byte[][] variants = new byte[ContentCoding.values().length][];
+    
+    /** The base-64 MD5 hash of each variant, computed when first needed. */
+    private final String[] md5s = new String[ContentCoding.values().length];
+    
+    /** The time the file was last modified. */
+    private final long lastModified;
+    
+    /** The ETag for the file. */
+    private final String eTag;
+    
+    /** The Last-Modified date for the file. */
+    private final String lastModifiedDate;
+    
+    /** When the file was last checked for changes, in milliseconds. */
+    private volatile long checked;
+    
+    /** The bytes counted against the cache for this entry (guarded by the map). */
+    private long size;
+    
+    /**
+     * Constructor.
+     * 
+     * @param url the URL path of the file
+     * @param contents the contents of the file
+     * @param lastModified the time the file was last modified
+     * @param checked when the file was read
+     */
+    private Entry(final String url, final byte[] contents,
+                  final long lastModified, final long checked) {
+      this.url = url;
+      this.contents = contents;
+      size = contents.length;
+      variants[ContentCoding.IDENTITY.ordinal()] = contents;
+      this.lastModified = lastModified;
+      this.checked = checked;
+      eTag = Response.getFileETag(contents.length, lastModified);
+      lastModifiedDate = HttpDate.format(lastModified);
+    }
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param directory the directory the files are read from
+   * @param maxBytes the most bytes of file contents kept in memory
+   * @param maxFileBytes files larger than this are not kept in memory
+   * @param checkInterval how long an entry is used before the file is checked, in milliseconds
+   * @param minCompressBytes files smaller than this are not compressed
+   */
+  public FileCache(final String directory, final long maxBytes, final long maxFileBytes,
+                   final long checkInterval, final int minCompressBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+    this.checkInterval = checkInterval;
+    this.minCompressBytes = minCompressBytes;
+  }
+  
+  /**
+   * Return the contents of a requested file, reading it into the
+   * cache if needed.  An entry is used without touching the file
+   * system until its check interval passes; then the file's size
+   * and modification time are compared, and the file is read again
+   * if either changed.  Files that are missing, too large or can't
+   * be read return null, and should be sent from disk (or 404'd).
+   * 
+   * @param url the URL path of the file, relative to the directory
+   * @return the file's contents, or null if it's not cached
+   */
+  public Entry get(final String url) {
+    final long now = System.currentTimeMillis();
+    Entry entry = null;
+    synchronized (map) {
+      entry = map.get(url);
+    }
+    
+    // Use the entry if it was checked recently
+    if ((entry != null) && ((now - entry.checked) < checkInterval)) {
+      return entry;
+    }
+    
+    // Check the file; if it hasn't changed, the entry is still good
+    final File file = new File(directory, url);
+    if (!file.isFile()) {
+      remove(url, entry);
+      return null;
+    }
+    
+    final long length = file.length();
+    final long lastModified = file.lastModified();
+    if ((entry != null) && (entry.contents.length == length) && (entry.lastModified == lastModified)) {
+      entry.checked = now;
+      return entry;
+    }
+    
+    // Drop the old contents, and read the file if it's small enough
+    remove(url, entry);
+    if (length > maxFileBytes) {
+      return null;
+    }
+    
+    byte[] contents = null;
+    try {
+      contents = Files.readAllBytes(file.toPath());
+    } catch (IOException e) {
+      System.out.println("Exception reading " + file.getPath() + ": " + e.getMessage());
+      return null;
+    }
+    
+    // If the file changed while we read it, send it from disk this time
+    if ((contents.length != length) || (file.lastModified() != lastModified)) {
+      return null;
+    }
+    
+    entry = new Entry(url, contents, lastModified, now);
+    put(url, entry);
+    return entry;
+  }
+  
+  /**
+   * Set a response's body to a cached file, in the requested coding,
+   * with the same validators that Response.setBodyAsFile() would
+   * set.  Each coding is compressed once, the first time it's asked
+   * for, and kept with the entry; it has its own ETag.  If the file
+   * is too small, or doesn't get smaller, it's sent as is.  The
+   * bytes are shared, not copied.
+   * 
+   * @param entry the cached file
+   * @param response the response
+   * @param coding the coding the client accepts
+   * @param addMD5 whether the response will need the MD5 hash of the body
+   */
+  public void setBody(final Entry entry, final Response response,
+                      final ContentCoding coding, final boolean addMD5) {
+    // Get the variant, falling back to the contents
+    final byte[] body = getVariant(entry, coding);
+    final ContentCoding used = (body == entry.contents) ? ContentCoding.IDENTITY : coding;
+    
+    response.setBodyAsBytes(body);
+    if (used == ContentCoding.IDENTITY) {
+      response.addToHeader(HeaderField.RES_ETAG, entry.eTag);
+    } else {
+      response.addToHeader(HeaderField.RES_CONTENT_ENCODING, used.getToken());
+      response.addToHeader(HeaderField.RES_ETAG, entry.eTag.substring(0, entry.eTag.length() - 1)
+          + used.getETagSuffix() + "\"");
+    }
+    response.addToHeader(HeaderField.RES_LAST_MODIFIED, entry.lastModifiedDate);
+    
+    if (addMD5) {
+      response.setBodyMD5(getMD5(entry, used, body));
+    }
+  }
+  
+  /**
+   * Return the file's contents in a coding, compressing them once.
+   * 
+   * @param entry the cached file
+   * @param coding the coding
+   * @return the bytes in that coding, or the contents if it isn't worth compressing
+   */
+  private byte[] getVariant(final Entry entry, final ContentCoding coding) {
+    final int index = coding.ordinal();
+    byte[] body = null;
+    synchronized (entry) {
+      body = entry.variants[index];
+      if (body != null) {
+        return body;
+      }
+      
+      // Compress the file; keep the contents if that doesn't make it smaller
+      body = (entry.contents.length < minCompressBytes) ? null : compress(entry.contents, coding);
+      if ((body == null) || (body.length >= entry.contents.length)) {
+        body = entry.contents;
+      }
+      entry.variants[index] = body;
+    }
+    
+    // Count the compressed copy against the cache
+    if (body != entry.contents) {
+      synchronized (map) {
+        entry.size += body.length;
+        if (map.get(entry.url) == entry) {
+          totalBytes += body.length;
+          evict(entry);
+        }
+      }
+    }
+    
+    return body;
+  }
+  
+  /**
+   * Return the MD5 hash of a variant, computing it once.
+   * 
+   * @param entry the cached file
+   * @param coding the coding of the variant
+   * @param body the variant
+   * @return the base-64 MD5 hash
+   */
+  private static String getMD5(final Entry entry, final ContentCoding coding, final byte[] body) {
+    final int index = coding.ordinal();
+    synchronized (entry) {
+      if (entry.md5s[index] == null) {
+        entry.md5s[index] = Utility.getMD5(body);
+      }
+      
+      return entry.md5s[index];
+    }
+  }
+  
+  /**
+   * Compress bytes, using the best compression (it's only done once).
+   * 
+   * @param data the bytes to compress
+   * @param coding the coding (gzip or deflate)
+   * @return the compressed bytes, or null if the coding isn't supported
+   */
+  private static byte[] compress(final byte[] data, final ContentCoding coding) {
+    if ((coding != ContentCoding.GZIP) && (coding != ContentCoding.DEFLATE)) {
+      return null;
+    }
+    
+    // The "deflate" coding is the zlib format; gzip is raw deflate
+    // data with its own header and trailer
+    final boolean gzip = (coding == ContentCoding.GZIP);
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2);
+    final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, gzip);
+    try {
+      if (gzip) {
+        bos.write(GZIP_HEADER);
+      }
+      
+      final DeflaterOutputStream dos = new DeflaterOutputStream(bos, deflater);
+      dos.write(data);
+      dos.finish();
+      
+      if (gzip) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        writeIntLE(bos, (int) crc.getValue());
+        writeIntLE(bos, data.length);
+      }
+    } catch (IOException e) {
+      System.out.println("Exception compressing: " + e.getMessage());
+      return null;
+    } finally {
+      deflater.end();
+    }
+    
+    return bos.toByteArray();
+  }
+  
+  /**
+   * Write an int in little-endian order, as the gzip trailer needs.
+   * 
+   * @param bos the stream
+   * @param value the value
+   */
+  private static void writeIntLE(final ByteArrayOutputStream bos, final int value) {
+    bos.write(value);
+    bos.write(value >>> 8);
+    bos.write(value >>> 16);
+    bos.write(value >>> 24);
+  }
+  
+  /**
+   * Add an entry, dropping the least recently used entries to make room.
+   * 
+   * @param url the URL path of the file
+   * @param entry the entry
+   */
+  private void put(final String url, final Entry entry) {
+    synchronized (map) {
+      final Entry old = map.put(url, entry);
+      if (old != null) {
+        totalBytes -= old.size;
+      }
+      totalBytes += entry.size;
+      evict(entry);
+    }
+  }
+  
+  /**
+   * Drop the least recently used entries until the cache fits.  The
+   * caller must hold the map's lock.
+   * 
+   * @param keep an entry that isn't dropped
+   */
+  private void evict(final Entry keep) {
+    final Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+    while ((totalBytes > maxBytes) && it.hasNext()) {
+      final Entry eldest = it.next().getValue();
+      if (eldest != keep) {
+        totalBytes -= eldest.size;
+        it.remove();
+      }
+    }
+  }
+  
+  /**
+   * Remove an entry, if it's still the one in the map.
+   * 
+   * @param url the URL path of the file
+   * @param entry the entry, or null
+   */
+  private void remove(final String url, final Entry entry) {
+    if (entry == null) {
+      return;
+    }
+    
+    synchronized (map) {
+      if (map.get(url) == entry) {
+        map.remove(url);
+        totalBytes -= entry.size;
+      }
+    }
+  }
+}
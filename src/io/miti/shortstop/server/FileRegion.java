@@ -0,0 +1,74 @@
+package io.miti.shortstop.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+public final class FileRegion {
+  
+  /** The open file. */
+  private final FileChannel file;
+  
+  /** The position of the next byte to send. */
+  private long position;
+  
+  /** The position just past the last byte to send. */
+  private final long end;
+  
+  /**
+   * Constructor.  This opens the file.
+   * 
+   * @param source the file to send
+   * @param start the position of the first byte to send
+   * @param length the number of bytes to send
+   * @throws IOException if the file cannot be opened
+   */
+  public FileRegion(final File source, final long start, final long length) throws IOException {
+    file = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+    position = start;
+    end = start + length;
+  }
+  
+  /**
+   * Send as much of the region as the channel will take right now.
+   * 
+   * @param channel the channel to write to
+   * @return the number of bytes sent
+   * @throws IOException if the file is shorter than expected, or writing fails
+   */
+  public long transferTo(final WritableByteChannel channel) throws IOException {
+    if (position >= end) {
+      return 0L;
+    }
+    
+    final long numSent = file.transferTo(position, end - position, channel);
+    if ((numSent == 0) && (position >= file.size())) {
+      throw new IOException("Unexpected end of file");
+    }
+    
+    position += numSent;
+    return numSent;
+  }
+  
+  /**
+   * Return whether there is more to send.
+   * 
+   * @return whether some of the region has not been sent
+   */
+  public boolean hasRemaining() {
+    return (position < end);
+  }
+  
+  /**
+   * Close the file.
+   */
+  public void close() {
+    try {
+      file.close();
+    } catch (IOException e) {
+      System.out.println("IOException: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,406 @@
+package io.miti.shortstop.server;
+
+import io.miti.shortstop.model.Response;
+import io.miti.shortstop.util.HeaderField;
+import io.miti.shortstop.util.HttpDate;
+import io.miti.shortstop.util.Utility;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class MappedFileCache {
+  
+  /** The most files whose requests are counted before they're mapped. */
+  private static final int MAX_COUNTED = 1024;
+  
+  /** The object that unmaps a buffer (sun.misc.Unsafe), or null if it isn't available. */
+  private static final Object UNSAFE;
+  
+  /** The method that unmaps a buffer (Unsafe.invokeCleaner), or null. */
+  private static final Method INVOKE_CLEANER;
+  
+  /** The directory the files are read from. */
+  private final String directory;
+  
+  /** The most bytes of files mapped at once. */
+  private final long maxBytes;
+  
+  /** Files smaller than this are not mapped. */
+  private final long minFileBytes;
+  
+  /** How long, in milliseconds, a mapping is used before the file is checked for changes. */
+  private final long checkInterval;
+  
+  /** How many times a file is requested before it's mapped. */
+  private final int minHits;
+  
+  /** The map of URL to the file's mapping, in least-recently-used order. */
+  private final LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  
+  /** The number of requests for files that aren't mapped yet (guarded by map). */
+  private final Map<String, Integer> hits = new HashMap<String, Integer>(64);
+  
+  /** The number of bytes mapped (guarded by map). */
+  private long totalBytes = 0L;
+  
+  static {
+    // Find the way to unmap buffers; without it, they're unmapped when collected
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    try {
+      final Class<?> cls = Class.forName("sun.misc.Unsafe");
+      final Field field = cls.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unsafe = field.get(null);
+      invokeCleaner = cls.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (Exception e) {
+      System.out.println("Mapped files will not be unmapped explicitly: " + e.getMessage());
+      unsafe = null;
+      invokeCleaner = null;
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+  }
+  
+  /**
+   * The mapping of a file, with the validators sent with it.  The
+   * cache holds one reference, and each response sending it holds
+   * another; it's unmapped when the last one is released.
+   */
+  public static final class Entry {
+    
+    /** The mapped file. */
+    private final File file;
+    
+    /** The mapping of the whole file. */
+    private final MappedByteBuffer mapping;
+    
+    /** The length of the file. */
+    private final long length;
+    
+    /** The time the file was last modified. */
+    private final long lastModified;
+    
+    /** The ETag for the file. */
+    private final String eTag;
+    
+    /** The Last-Modified date for the file. */
+    private final String lastModifiedDate;
+    
+    /** The base-64 MD5 hash of the file, computed when first needed. */
+    private volatile String md5 = null;
+    
+    /** When the file was last checked for changes, in milliseconds. */
+    private volatile long checked;
+    
+    /** The number of references to the mapping (guarded by this). */
+    private int refs = 1;
+    
+    /**
+     * Constructor.  The entry starts with the cache's reference.
+     * 
+     * @param file the mapped file
+     * @param mapping the mapping of the whole file
+     * @param lastModified the time the file was last modified
+     * @param checked when the file was mapped
+     */
+    private Entry(final File file, final MappedByteBuffer mapping,
+                  final long lastModified, final long checked) {
+      this.file = file;
+      this.mapping = mapping;
+      this.lastModified = lastModified;
+      this.checked = checked;
+      length = mapping.capacity();
+      eTag = Response.getFileETag(length, lastModified);
+      lastModifiedDate = HttpDate.format(lastModified);
+    }
+    
+    /**
+     * Add a reference, unless the mapping has already been released.
+     * 
+     * @return whether the reference was added
+     */
+    private synchronized boolean acquire() {
+      if (refs == 0) {
+        return false;
+      }
+      
+      ++refs;
+      return true;
+    }
+    
+    /**
+     * Drop a reference, and unmap the file when it was the last one.
+     */
+    private void release() {
+      synchronized (this) {
+        if ((refs == 0) || (--refs > 0)) {
+          return;
+        }
+      }
+      
+      unmap(mapping);
+    }
+  }
+  
+  /**
+   * A response's reference to a mapping, released when it's closed
+   * (only the first close counts).
+   */
+  private static final class Lease implements Closeable {
+    
+    /** The mapping, or null once it's released. */
+    private Entry entry;
+    
+    /**
+     * Constructor.
+     * 
+     * @param entry the acquired mapping
+     */
+    private Lease(final Entry entry) {
+      this.entry = entry;
+    }
+    
+    /**
+     * Release the reference.
+     */
+    @Override
+    public void close() {
+      final Entry held = entry;
+      entry = null;
+      if (held != null) {
+        held.release();
+      }
+    }
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param directory the directory the files are read from
+   * @param maxBytes the most bytes of files mapped at once
+   * @param minFileBytes files smaller than this are not mapped
+   * @param checkInterval how long a mapping is used before the file is checked, in milliseconds
+   * @param minHits how many times a file is requested before it's mapped
+   */
+  public MappedFileCache(final String directory, final long maxBytes, final long minFileBytes,
+                         final long checkInterval, final int minHits) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.minFileBytes = minFileBytes;
+    this.checkInterval = checkInterval;
+    this.minHits = minHits;
+  }
+  
+  /**
+   * Return the mapping of a requested file, mapping it if it has
+   * been requested often enough.  A mapping is used without touching
+   * the file system until its check interval passes; then the file's
+   * size and modification time are compared, and the file is mapped
+   * again if either changed.  Files that are missing, too small, too
+   * large, not requested often enough or can't be mapped return null,
+   * and should be sent from disk (or 404'd).
+   * 
+   * @param url the URL path of the file, relative to the directory
+   * @return the file's mapping, or null if it's not mapped
+   */
+  public Entry get(final String url) {
+    final long now = System.currentTimeMillis();
+    Entry entry = null;
+    synchronized (map) {
+      entry = map.get(url);
+    }
+    
+    // Use the mapping if it was checked recently
+    if ((entry != null) && ((now - entry.checked) < checkInterval)) {
+      return entry;
+    }
+    
+    // Check the file; if it hasn't changed, the mapping is still good
+    final File file = new File(directory, url);
+    if (!file.isFile()) {
+      remove(url, entry);
+      return null;
+    }
+    
+    final long length = file.length();
+    final long lastModified = file.lastModified();
+    if ((entry != null) && (entry.length == length) && (entry.lastModified == lastModified)) {
+      entry.checked = now;
+      return entry;
+    }
+    
+    // Drop the old mapping, and map the file if it's hot and fits
+    remove(url, entry);
+    if ((length < minFileBytes) || (length > maxBytes) || (length > Integer.MAX_VALUE)
+        || !isHot(url)) {
+      return null;
+    }
+    
+    MappedByteBuffer mapping = null;
+    try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      mapping = fc.map(FileChannel.MapMode.READ_ONLY, 0L, length);
+    } catch (IOException e) {
+      System.out.println("Exception mapping " + file.getPath() + ": " + e.getMessage());
+      return null;
+    }
+    
+    // If the file changed while we mapped it, send it from disk this time
+    if (file.lastModified() != lastModified) {
+      unmap(mapping);
+      return null;
+    }
+    
+    entry = new Entry(file, mapping, lastModified, now);
+    put(url, entry);
+    return entry;
+  }
+  
+  /**
+   * Set a response's body to a mapped file, with the same validators
+   * that Response.setBodyAsFile() would set.  The response holds a
+   * reference to the mapping until the body is written.
+   * 
+   * @param entry the mapped file
+   * @param response the response
+   * @param addMD5 whether the response will need the MD5 hash of the body
+   * @return whether the body was set; false if the mapping was just released
+   */
+  public boolean setBody(final Entry entry, final Response response, final boolean addMD5) {
+    if (!entry.acquire()) {
+      return false;
+    }
+    
+    response.setBodyAsMappedFile(entry.file, entry.mapping.duplicate(), new Lease(entry));
+    response.addToHeader(HeaderField.RES_ETAG, entry.eTag);
+    response.addToHeader(HeaderField.RES_LAST_MODIFIED, entry.lastModifiedDate);
+    if (addMD5) {
+      String md5 = entry.md5;
+      if (md5 == null) {
+        md5 = Utility.getMD5(entry.mapping);
+        entry.md5 = md5;
+      }
+      response.setBodyMD5(md5);
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Count a request for a file that isn't mapped, and return whether
+   * it has now been requested often enough to map it.
+   * 
+   * @param url the URL path of the file
+   * @return whether the file is hot
+   */
+  private boolean isHot(final String url) {
+    synchronized (map) {
+      final Integer count = hits.get(url);
+      final int num = (count == null) ? 1 : (count.intValue() + 1);
+      if (num >= minHits) {
+        hits.remove(url);
+        return true;
+      }
+      
+      // Start counting again if too many files are being counted
+      if (hits.size() >= MAX_COUNTED) {
+        hits.clear();
+      }
+      hits.put(url, Integer.valueOf(num));
+      return false;
+    }
+  }
+  
+  /**
+   * Add a mapping, releasing the least recently used mappings to stay
+   * within the budget.
+   * 
+   * @param url the URL path of the file
+   * @param entry the mapping
+   */
+  private void put(final String url, final Entry entry) {
+    Entry old = null;
+    final List<Entry> evicted = new ArrayList<Entry>(2);
+    synchronized (map) {
+      old = map.put(url, entry);
+      if (old != null) {
+        totalBytes -= old.length;
+        evicted.add(old);
+      }
+      totalBytes += entry.length;
+      
+      final Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+      while ((totalBytes > maxBytes) && it.hasNext()) {
+        final Entry eldest = it.next().getValue();
+        if (eldest != entry) {
+          totalBytes -= eldest.length;
+          it.remove();
+          evicted.add(eldest);
+        }
+      }
+    }
+    
+    // Release the cache's references outside the lock
+    for (Entry dropped : evicted) {
+      dropped.release();
+    }
+  }
+  
+  /**
+   * Remove a mapping, if it's still the one in the map, and release
+   * the cache's reference to it.
+   * 
+   * @param url the URL path of the file
+   * @param entry the mapping, or null
+   */
+  private void remove(final String url, final Entry entry) {
+    if (entry == null) {
+      return;
+    }
+    
+    boolean removed = false;
+    synchronized (map) {
+      if (map.get(url) == entry) {
+        map.remove(url);
+        totalBytes -= entry.length;
+        removed = true;
+      }
+    }
+    
+    if (removed) {
+      entry.release();
+    }
+  }
+  
+  /**
+   * Unmap a buffer now, if we can; otherwise it's unmapped when it's
+   * garbage collected.  The buffer (and its views) must not be used
+   * afterwards.
+   * 
+   * @param buffer the mapped buffer
+   */
+  private static void unmap(final MappedByteBuffer buffer) {
+    if (INVOKE_CLEANER == null) {
+      return;
+    }
+    
+    try {
+      INVOKE_CLEANER.invoke(UNSAFE, buffer);
+    } catch (Exception e) {
+      System.out.println("Exception unmapping a file: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,712 @@
+package io.miti.shortstop.server;
+
+import io.miti.shortstop.model.Request;
+import io.miti.shortstop.model.Response;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+
+public final class NioConnection {
+  
+  /** Stop handling pipelined requests once this many bytes are waiting to be written. */
+  private static final int MAX_PENDING_OUTPUT = 256 * 1024;
+  
+  /** The most buffers passed to one gathering write. */
+  private static final int MAX_WRITE_BUFFERS = 64;
+  
+  /** The smallest output buffer we allocate, so most responses fit in a reused one. */
+  private static final int MIN_OUTPUT_BUFFER = 4 * 1024;
+  
+  /** The most written output buffers kept for reuse. */
+  private static final int MAX_SPARE_BUFFERS = 4;
+  
+  /** Output buffers larger than this aren't kept for reuse. */
+  private static final int MAX_SPARE_CAPACITY = 64 * 1024;
+  
+  /** Bodies larger than this are written from the response's array, not copied. */
+  private static final int MAX_COPIED_BODY = 16 * 1024;
+  
+  /** The size of the pieces a streamed body is handed to the selector loop in. */
+  private static final int STREAM_CHUNK_SIZE = 8 * 1024;
+  
+  /** The server that handles requests and writes responses. */
+  private final Shortstop server;
+  
+  /** The connection to the client. */
+  private final SocketChannel channel;
+  
+  /** The selection key for the channel. */
+  private final SelectionKey key;
+  
+  /** Runs the handlers, so a slow handler or file read doesn't hold up the loop's other connections. */
+  private final Executor handlers;
+  
+  /** The selector loop, which queues the responses the handlers hand back. */
+  private final Executor loop;
+  
+  /** Decodes requests from the bytes read so far. */
+  private final RequestDecoder decoder;
+  
+  /** Encodes the heads of the responses. */
+  private final ResponseEncoder encoder = new ResponseEncoder();
+  
+  /** The responses waiting to be written, in order (ByteBuffers and FileRegions, and the owners of mapped files). */
+  private final Deque<Object> output = new ArrayDeque<Object>(4);
+  
+  /** Output buffers that have been written, kept for the next responses. */
+  private final Deque<ByteBuffer> spareBuffers = new ArrayDeque<ByteBuffer>(MAX_SPARE_BUFFERS);
+  
+  /** The array used to pass the waiting responses to a gathering write. */
+  private final ByteBuffer[] writeBuffers = new ByteBuffer[MAX_WRITE_BUFFERS];
+  
+  /** The number of bytes waiting to be written. */
+  private long pendingBytes = 0L;
+  
+  /** The number of requests read on this connection. */
+  private int count = 0;
+  
+  /** Whether the connection is closed once the waiting responses are written. */
+  private boolean closing = false;
+  
+  /** Whether to read and drop what the client still sends before closing, because its request was rejected. */
+  private boolean drainOnClose = false;
+  
+  /** When to stop reading what the client still sends and close, in milliseconds, or 0 if we aren't. */
+  private long drainUntil = 0L;
+  
+  /** The number of bytes read and dropped since the output was shut down. */
+  private long drained = 0L;
+  
+  /** Whether a request is with the handlers; the next isn't decoded until it's done, since the decoder reuses one Request and responses go out in order. */
+  private boolean busy = false;
+  
+  /** The body a handler is writing to the connection as it's produced, or null. */
+  private StreamedBody streaming = null;
+  
+  /** When the client last sent or received data, in milliseconds. */
+  private long lastActive = System.currentTimeMillis();
+  
+  /**
+   * Constructor.
+   * 
+   * @param server the server that handles requests
+   * @param channel the connection to the client
+   * @param key the selection key for the channel
+   * @param handlers runs the handlers
+   * @param loop the selector loop for the channel
+   */
+  public NioConnection(final Shortstop server, final SocketChannel channel,
+                       final SelectionKey key, final Executor handlers, final Executor loop) {
+    this.server = server;
+    this.channel = channel;
+    this.key = key;
+    this.handlers = handlers;
+    this.loop = loop;
+    decoder = server.newDecoder();
+  }
+  
+  /**
+   * Read what's available from the client, handle every request
+   * that has been completely read, and write the responses.
+   * 
+   * @throws IOException if reading or writing fails
+   */
+  public void onReadable() throws IOException {
+    if (drainUntil != 0L) {
+      drain();
+      return;
+    }
+    
+    final int numRead = channel.read(decoder.getReadBuffer());
+    if (numRead < 0) {
+      // The client closed the connection
+      close();
+      return;
+    }
+    
+    lastActive = System.currentTimeMillis();
+    handleRequests();
+    flush();
+  }
+  
+  /**
+   * Write more of the waiting responses.
+   * 
+   * @throws IOException if writing fails
+   */
+  public void onWritable() throws IOException {
+    flush();
+    if (streaming != null) {
+      streaming.update(0L, pendingBytes);
+    }
+  }
+  
+  /**
+   * Hand the next request that has been completely read to the
+   * handlers.  Its response is queued, and the request after it is
+   * handed over, once the handler is done (see finishResponse()).
+   * 
+   * @throws IOException if the request header is too large
+   */
+  private void handleRequests() throws IOException {
+    if (busy || closing || (pendingBytes >= MAX_PENDING_OUTPUT)) {
+      return;
+    }
+    
+    // See if we have another whole request
+    final Request msg = decoder.decode();
+    if (msg == null) {
+      return;
+    }
+    
+    ++count;
+    busy = true;
+    final int num = count;
+    handlers.execute(() -> prepareResponse(msg, num));
+  }
+  
+  /**
+   * Handle a request and encode its response, then hand it back to
+   * the selector loop to be written.  This runs on a handler thread;
+   * the request and the encoder aren't used by the loop until then.
+   * 
+   * @param msg the request
+   * @param num the number of requests read on this connection so far
+   */
+  private void prepareResponse(final Request msg, final int num) {
+    final Deque<Object> items = new ArrayDeque<Object>(4);
+    try {
+      // Decide whether to keep the connection open after this request
+      final boolean canKeepAlive = server.canKeepAlive(msg, num);
+      final boolean rejected = (msg.getRejectCode() != 0);
+      
+      // Handle the request and encode the response
+      final Response response = server.respond(msg);
+      final boolean keepAlive = server.setConnectionHeader(response, canKeepAlive, num);
+      if (response.hasBodyWriter() && !response.isHeadOnly()) {
+        // Send the head, then the body as the writer produces it
+        final ByteBuffer head = server.encodeHead(response, encoder);
+        final StreamedBody body = new StreamedBody();
+        loop.execute(() -> startStreamed(head, body));
+        Shortstop.writeStreamedBody(response, body);
+        body.flush();
+        loop.execute(() -> finishResponse(null, items, 0L, !keepAlive, false));
+        return;
+      }
+      
+      final boolean largeBody = !response.isHeadOnly() && !response.hasBodyWriter()
+          && (response.getBodyLength() > MAX_COPIED_BODY);
+      final ByteBuffer head = largeBody ? server.encodeHead(response, encoder)
+          : server.encodeResponse(response, encoder);
+      long bytes = head.remaining();
+      
+      // A large body is sent from a read-only view of its array
+      if (largeBody) {
+        final ByteBuffer body = response.getBodyBuffer();
+        items.add(body);
+        bytes += body.remaining();
+      }
+      
+      // A file body is sent from the file, after the header
+      if (response.isHeadOnly()) {
+        final Closeable owner = response.takeBodyFileOwner();
+        if (owner != null) {
+          closeOwner(owner);
+        }
+      } else if (response.hasBodyFile() && (response.getBodyFileLength() > 0L)) {
+        bytes += addFileBody(response, items);
+      }
+      
+      final long total = bytes;
+      loop.execute(() -> finishResponse(head, items, total, !keepAlive, rejected));
+    } catch (IOException e) {
+      System.out.println("IOException: " + e.getMessage());
+      release(items);
+      loop.execute(this::close);
+    } catch (RuntimeException e) {
+      // Don't leave the connection waiting for a failed handler
+      e.printStackTrace();
+      release(items);
+      loop.execute(this::close);
+    }
+  }
+  
+  /**
+   * Add the ranges of a file body (the whole file, unless the
+   * request asked for ranges) to the items to send, with the head of
+   * each part of a multipart body before it.  A mapped file is sent
+   * from views of the mapping, followed by its owner, which is closed
+   * once they have been written.
+   * 
+   * @param response the response
+   * @param items the items to send
+   * @return the number of bytes added
+   * @throws IOException if the file cannot be opened
+   */
+  private static long addFileBody(final Response response, final Deque<Object> items)
+      throws IOException {
+    long bytes = 0L;
+    final int count = response.getBodyFileRangeCount();
+    for (int i = 0; i <= count; ++i) {
+      final byte[] part = response.getBodyFilePart(i);
+      if (part != null) {
+        items.add(ByteBuffer.wrap(part).asReadOnlyBuffer());
+        bytes += part.length;
+      }
+      
+      if (i < count) {
+        final ByteBuffer mapped = response.getBodyFileMapping(i);
+        if (mapped != null) {
+          items.add(mapped);
+        } else {
+          items.add(new FileRegion(response.getBodyFile(), response.getBodyFileRangeStart(i),
+              response.getBodyFileRangeLength(i)));
+        }
+        bytes += response.getBodyFileRangeLength(i);
+      }
+    }
+    
+    final Closeable owner = response.takeBodyFileOwner();
+    if (owner != null) {
+      items.add(owner);
+    }
+    
+    return bytes;
+  }
+  
+  /**
+   * Queue a response that a handler thread has prepared, hand the
+   * next request to the handlers, and write what we can.  This runs
+   * on the selector loop.
+   * 
+   * @param head the encoded head (and any body in memory), in the encoder's buffer;
+   *             or null if it was queued already
+   * @param items the rest of the body
+   * @param bytes the number of bytes in the head and the items
+   * @param close whether the connection is closed after the response
+   * @param rejected whether the request was rejected, so the client may still be sending it
+   */
+  private void finishResponse(final ByteBuffer head, final Deque<Object> items,
+                              final long bytes, final boolean close, final boolean rejected) {
+    busy = false;
+    streaming = null;
+    if (!channel.isOpen()) {
+      release(items);
+      return;
+    }
+    
+    // Copy the head out of the encoder, which the next request uses
+    if (head != null) {
+      final ByteBuffer buffer = takeBuffer(head.remaining());
+      buffer.put(head).flip();
+      output.add(buffer);
+    }
+    output.addAll(items);
+    pendingBytes += bytes;
+    closing = close;
+    drainOnClose = rejected;
+    lastActive = System.currentTimeMillis();
+    
+    try {
+      handleRequests();
+      flush();
+    } catch (IOException e) {
+      System.out.println("IOException: " + e.getMessage());
+      close();
+    }
+  }
+  
+  /**
+   * Queue the head of a response whose body is streamed, and write
+   * what we can.  This runs on the selector loop.
+   * 
+   * @param head the encoded head, in the encoder's buffer
+   * @param body the stream the body is written to
+   */
+  private void startStreamed(final ByteBuffer head, final StreamedBody body) {
+    if (!channel.isOpen()) {
+      body.abandon();
+      return;
+    }
+    
+    streaming = body;
+    final ByteBuffer buffer = takeBuffer(head.remaining());
+    buffer.put(head).flip();
+    output.add(buffer);
+    pendingBytes += buffer.remaining();
+    writeStreamed(0L);
+  }
+  
+  /**
+   * Queue the next piece of a streamed body, and write what we can.
+   * This runs on the selector loop.
+   * 
+   * @param data the piece of the body
+   */
+  private void queueStreamed(final ByteBuffer data) {
+    if (!channel.isOpen()) {
+      return;
+    }
+    
+    final long num = data.remaining();
+    output.add(data);
+    pendingBytes += num;
+    writeStreamed(num);
+  }
+  
+  /**
+   * Write what we can of a streamed body, and tell the handler how
+   * much is still waiting to be written.
+   * 
+   * @param num the number of bytes of the body just queued
+   */
+  private void writeStreamed(final long num) {
+    try {
+      flush();
+    } catch (IOException e) {
+      System.out.println("IOException: " + e.getMessage());
+      close();
+      return;
+    }
+    
+    if (streaming != null) {
+      streaming.update(num, pendingBytes);
+    }
+  }
+  
+  /**
+   * Write the waiting responses, using as few writes as possible.
+   * 
+   * @throws IOException if writing fails
+   */
+  private void flush() throws IOException {
+    while (!output.isEmpty()) {
+      // Write the next file, or as many buffers as we can at once
+      final long numWritten;
+      if (output.peekFirst() instanceof FileRegion) {
+        numWritten = ((FileRegion) output.peekFirst()).transferTo(channel);
+      } else {
+        numWritten = writeBuffers();
+      }
+      
+      if (numWritten > 0) {
+        lastActive = System.currentTimeMillis();
+        pendingBytes -= numWritten;
+      }
+      
+      // Drop the responses that were completely written
+      dropWritten();
+      
+      if (!output.isEmpty()) {
+        if (numWritten == 0) {
+          // Wait until the channel can take more
+          key.interestOps(SelectionKey.OP_WRITE);
+          return;
+        }
+        continue;
+      }
+      
+      // Handle any more requests we already read
+      handleRequests();
+    }
+    
+    if (busy) {
+      // Wait for the handler before reading more
+      key.interestOps(0);
+    } else if (closing && drainOnClose) {
+      // Let the client read the response before closing (see drain())
+      channel.shutdownOutput();
+      drainOnClose = false;
+      drainUntil = System.currentTimeMillis() + Shortstop.LINGER_TIME;
+      key.interestOps(SelectionKey.OP_READ);
+    } else if (closing) {
+      // The last response is sent, so close the connection
+      close();
+    } else {
+      // Wait for the next request
+      key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+  
+  /**
+   * Read and drop what the client is still sending after its request
+   * was rejected (e.g., the rest of a body that was too large), and
+   * close the connection once it's done, or it has sent too much.
+   * Closing with unread data resets the connection, which can throw
+   * away the response before the client reads it.
+   * 
+   * @throws IOException if reading fails
+   */
+  private void drain() throws IOException {
+    final ByteBuffer scratch = takeBuffer(0);
+    int numRead = channel.read(scratch);
+    while (numRead > 0) {
+      drained += numRead;
+      scratch.clear();
+      numRead = (drained < Shortstop.LINGER_BYTES) ? channel.read(scratch) : -1;
+    }
+    returnBuffer(scratch);
+    
+    if (numRead < 0) {
+      close();
+    }
+  }
+  
+  /**
+   * Write the buffers at the front of the queue with one gathering
+   * write, stopping at the first file.
+   * 
+   * @return the number of bytes written
+   * @throws IOException if writing fails
+   */
+  private long writeBuffers() throws IOException {
+    int num = 0;
+    for (Object item : output) {
+      if (!(item instanceof ByteBuffer) || (num == MAX_WRITE_BUFFERS)) {
+        break;
+      }
+      writeBuffers[num++] = (ByteBuffer) item;
+    }
+    
+    final long numWritten = channel.write(writeBuffers, 0, num);
+    java.util.Arrays.fill(writeBuffers, 0, num, null);
+    return numWritten;
+  }
+  
+  /**
+   * Remove the items at the front of the queue that have been
+   * completely written.
+   */
+  private void dropWritten() {
+    while (!output.isEmpty()) {
+      final Object item = output.peekFirst();
+      if (item instanceof FileRegion) {
+        if (((FileRegion) item).hasRemaining()) {
+          return;
+        }
+        ((FileRegion) item).close();
+      } else if (item instanceof Closeable) {
+        // The views of a mapped file before it have been written
+        closeOwner((Closeable) item);
+      } else if (((ByteBuffer) item).hasRemaining()) {
+        return;
+      } else {
+        returnBuffer((ByteBuffer) item);
+      }
+      output.removeFirst();
+    }
+  }
+  
+  /**
+   * Return an empty output buffer with room for a response, reusing
+   * one that has been written if we can.
+   * 
+   * @param size the size of the response
+   * @return the buffer
+   */
+  private ByteBuffer takeBuffer(final int size) {
+    final ByteBuffer spare = spareBuffers.pollFirst();
+    if ((spare != null) && (spare.capacity() >= size)) {
+      spare.clear();
+      return spare;
+    }
+    
+    return ByteBuffer.allocate(Math.max(size, MIN_OUTPUT_BUFFER));
+  }
+  
+  /**
+   * Keep an output buffer that has been written, for reuse.
+   * 
+   * @param buffer the buffer
+   */
+  private void returnBuffer(final ByteBuffer buffer) {
+    if (!buffer.isReadOnly() && (spareBuffers.size() < MAX_SPARE_BUFFERS)
+        && (buffer.capacity() <= MAX_SPARE_CAPACITY)) {
+      spareBuffers.addLast(buffer);
+    }
+  }
+  
+  /**
+   * Return whether the connection has had no traffic since the
+   * specified time.  It isn't idle while a handler has its request.
+   * After a rejected request, it's idle once the time to read what
+   * the client still sends runs out.
+   * 
+   * @param cutoff the time, in milliseconds
+   * @return whether the connection is idle
+   */
+  public boolean isIdleSince(final long cutoff) {
+    if (drainUntil != 0L) {
+      return (System.currentTimeMillis() >= drainUntil);
+    }
+    
+    return (!busy && (lastActive < cutoff));
+  }
+  
+  /**
+   * Close the owner of a mapped file, once the connection is done
+   * with the mapping.
+   * 
+   * @param owner the owner
+   */
+  private static void closeOwner(final Closeable owner) {
+    try {
+      owner.close();
+    } catch (IOException e) {
+      System.out.println("IOException: " + e.getMessage());
+    }
+  }
+  
+  /**
+   * Close the files (and the owners of mapped files) in a list of
+   * items that won't be sent, and clear the list.
+   * 
+   * @param items the items
+   */
+  private static void release(final Collection<Object> items) {
+    for (Object item : items) {
+      if (item instanceof FileRegion) {
+        ((FileRegion) item).close();
+      } else if (item instanceof Closeable) {
+        closeOwner((Closeable) item);
+      }
+    }
+    items.clear();
+  }
+  
+  /**
+   * Close the connection.
+   */
+  public void close() {
+    // Stop any handler writing a body, and close any files we were still sending
+    if (streaming != null) {
+      streaming.abandon();
+      streaming = null;
+    }
+    release(output);
+    
+    key.cancel();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      System.out.println("IOException: " + e.getMessage());
+    }
+  }
+  
+  /**
+   * The stream a handler's body writer writes to.  The body is handed
+   * to the selector loop in pieces as it's written, and the writer
+   * waits (on its handler thread) while too much of it is waiting to
+   * be sent, so a large body is never held in memory.
+   */
+  private final class StreamedBody extends OutputStream {
+    
+    /** The piece of the body being filled. */
+    private ByteBuffer chunk = ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+    
+    /** The number of bytes handed to the loop. */
+    private long handed = 0L;
+    
+    /** The number of bytes the loop has queued. */
+    private long queued = 0L;
+    
+    /** The number of bytes waiting to be written, when the loop last queued or wrote some. */
+    private long waiting = 0L;
+    
+    /** Whether the connection was closed. */
+    private boolean abandoned = false;
+    
+    @Override
+    public void write(final int b) throws IOException {
+      if (!chunk.hasRemaining()) {
+        send();
+      }
+      chunk.put((byte) b);
+    }
+    
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      int pos = off;
+      int left = len;
+      while (left > 0) {
+        if (!chunk.hasRemaining()) {
+          send();
+        }
+        final int num = Math.min(left, chunk.remaining());
+        chunk.put(b, pos, num);
+        pos += num;
+        left -= num;
+      }
+    }
+    
+    /**
+     * Hand what has been written so far to the loop, so the client
+     * gets it right away.
+     */
+    @Override
+    public void flush() throws IOException {
+      if (chunk.position() > 0) {
+        send();
+      }
+    }
+    
+    /**
+     * Hand the current piece to the loop, first waiting until enough
+     * has been written to the client.
+     * 
+     * @throws IOException if the connection was closed
+     */
+    private void send() throws IOException {
+      synchronized (this) {
+        while (!abandoned && ((handed - queued + waiting) >= MAX_PENDING_OUTPUT)) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending the body");
+          }
+        }
+        if (abandoned) {
+          throw new IOException("The connection was closed");
+        }
+      }
+      
+      chunk.flip();
+      final ByteBuffer data = chunk;
+      handed += data.remaining();
+      chunk = ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+      loop.execute(() -> queueStreamed(data));
+    }
+    
+    /**
+     * Record what the loop has queued and written.  This is called
+     * on the selector loop.
+     * 
+     * @param num the number of bytes just queued
+     * @param pending the number of bytes waiting to be written
+     */
+    private synchronized void update(final long num, final long pending) {
+      queued += num;
+      waiting = pending;
+      notifyAll();
+    }
+    
+    /**
+     * Stop the writer, since the connection was closed.  This is
+     * called on the selector loop.
+     */
+    private synchronized void abandon() {
+      abandoned = true;
+      notifyAll();
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package io.miti.shortstop.server;
+
+import io.miti.shortstop.model.Config;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public final class NioServer {
+  
+  /** The server that handles requests and writes responses. */
+  private final Shortstop server;
+  
+  /** The configuration. */
+  private final Config cfg;
+  
+  /** The selector loops, one per thread. */
+  private SelectorLoop[] loops = null;
+  
+  /** Runs the handlers, so the selector threads only read and write. */
+  private ExecutorService handlers = null;
+  
+  /** The index of the loop that gets the next connection. */
+  private int nextLoop = 0;
+  
+  /**
+   * Constructor.
+   * 
+   * @param server the server that handles requests
+   * @param cfg the configuration
+   */
+  public NioServer(final Shortstop server, final Config cfg) {
+    this.server = server;
+    this.cfg = cfg;
+  }
+  
+  /**
+   * Start the selector loops and accept connections on this thread.
+   * This only returns if the server socket fails.
+   * 
+   * @param url the URL of the server, for display
+   */
+  public void start(final String url) {
+    
+    // Try to start the server
+    ServerSocketChannel ssc = null;
+    try {
+      ssc = ServerSocketChannel.open();
+      ssc.bind(new InetSocketAddress(cfg.getPort()), 1024);
+      System.out.println("Server running: " + url);
+    } catch (IOException ioe) {
+      System.err.println("Error running server: " + ioe.getMessage());
+      return;
+    }
+    
+    // Start the handler threads; a connection hands them one request at
+    // a time, so the queue holds at most one task per connection
+    final int size = cfg.getWorkerPoolSize();
+    handlers = Executors.newFixedThreadPool(size, new WorkerThreadFactory("shortstop-handler"));
+    
+    // Start a thread for each selector loop
+    final int count = cfg.getSelectorThreads();
+    loops = new SelectorLoop[count];
+    try {
+      for (int i = 0; i < count; ++i) {
+        loops[i] = new SelectorLoop(server, handlers, cfg.getKeepAliveTimeout());
+        final Thread thread = new Thread(loops[i], "shortstop-selector-" + (i + 1));
+        thread.start();
+      }
+    } catch (IOException ioe) {
+      System.err.println("Error opening selector: " + ioe.getMessage());
+      stopLoops();
+      return;
+    }
+    System.out.println(String.format("NIO engine: %d selector threads, %d handler threads", count, size));
+    
+    // Listen for connections and hand them to the loops in turn
+    while (true) {
+      try {
+        final SocketChannel channel = ssc.accept();
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+        channel.configureBlocking(false);
+        loops[nextLoop].addConnection(channel);
+        nextLoop = (nextLoop + 1) % loops.length;
+      } catch (IOException e) {
+        System.err.println(e);
+        stopLoops();
+        return;
+      }
+    }
+  }
+  
+  /**
+   * Stop all of the selector loops, and the handler threads.
+   */
+  private void stopLoops() {
+    for (SelectorLoop loop : loops) {
+      if (loop != null) {
+        loop.stop();
+      }
+    }
+    handlers.shutdown();
+  }
+}
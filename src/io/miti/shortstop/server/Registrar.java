@@ -1,9 +1,8 @@
 package io.miti.shortstop.server;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.EnumMap;
 import java.util.Iterator;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -14,14 +13,16 @@ import io.miti.shortstop.model.Request;
 import io.miti.shortstop.model.RequestInterface;
 import io.miti.shortstop.model.Response;
 import io.miti.shortstop.model.TemplateField;
-import io.miti.shortstop.model.UrlHandler;
 import io.miti.shortstop.model.UrlTemplate;
 import io.miti.shortstop.util.HeaderField;
 
 public final class Registrar {
   
-  /** Create our map of handlers. */
-  private static Map<UrlTemplate, List<UrlHandler>> map = new HashMap<UrlTemplate, List<UrlHandler>>(10);
+  /** The registered routes, by URL template; only changed while holding the class lock. */
+  private static final Map<UrlTemplate, Route> handlers = new LinkedHashMap<UrlTemplate, Route>(10);
+  
+  /** The current tree of routes; replaced (never changed) when a handler is registered. */
+  private static volatile RouteNode routes = new RouteNode();
 
   /**
    * Default constructor.
@@ -42,34 +43,86 @@ public final class Registrar {
   
   
   /**
-   * Register a handler.
+   * Register a handler.  This can be called while the server is
+   * running; requests already being handled see the old routes.
    * 
    * @param verb the HTTP operation
    * @param url the URL template
    * @param handler the handler implementation
    */
-  public static void register(final HttpOperation verb, final String url, final RequestInterface handler) {
+  public static synchronized void register(final HttpOperation verb, final String url, final RequestInterface handler) {
     // Generate the URL template object
     final UrlTemplate key = new UrlTemplate(url);
     
     // See if it's in the map
-    List<UrlHandler> list = map.get(key);
-    if (list == null) {
-      // Add a new entry to the map
-      list = new ArrayList<UrlHandler>(3);
-      list.add(new UrlHandler(verb, handler));
-      map.put(key, list);
+    Route route = handlers.get(key);
+    if (route == null) {
+      route = new Route(key, new EnumMap<HttpOperation, RequestInterface>(HttpOperation.class));
+    } else if (route.getHandler(verb) != null) {
+      // Keep the existing handler for the verb
+      System.out.println("Warning: There is already a handler for " + verb.toString() + " " + url);
+      return;
+    }
+    
+    // Add this entry and publish the new routes; only the path to the
+    // route is copied, so registering many handlers stays fast
+    route = route.with(verb, handler);
+    handlers.put(route.getTemplate(), route);
+    routes = routes.with(route.getTemplate(), route);
+  }
+  
+  
+  /**
+   * Register a handler whose responses are kept for a while, so the
+   * same request (the same URL, query parameters and chosen headers)
+   * is answered without calling the handler again.  Only successful
+   * responses with the body in memory are kept; see CachedHandler.
+   * Only GET and HEAD handlers can be cached, so others are
+   * registered without a cache.
+   * 
+   * @param verb the HTTP operation
+   * @param url the URL template
+   * @param handler the handler implementation
+   * @param ttl how long a response is kept, in milliseconds
+   * @param keyHeaders the request headers that select a different response
+   */
+  public static void register(final HttpOperation verb, final String url, final RequestInterface handler,
+                              final long ttl, final String... keyHeaders) {
+    if ((verb != HttpOperation.GET) && (verb != HttpOperation.HEAD)) {
+      System.out.println("Warning: Responses to " + verb.toString() + " " + url + " are not cached");
+      register(verb, url, handler);
     } else {
-      // See if an entry already exists for the verb
-      for (UrlHandler uh : list) {
-        if (uh.getVerb().equals(verb)) {
-          System.out.println("Warning: There is already a handler for " + verb.toString() + " " + url);
-        }
-      }
-      
-      // Add this entry to the existing list
-      list.add(new UrlHandler(verb, handler));
+      register(verb, url, new CachedHandler(handler, ttl, keyHeaders));
+    }
+  }
+  
+  
+  /**
+   * Remove the handler for an operation on a URL.  This can be called
+   * while the server is running.
+   * 
+   * @param verb the HTTP operation
+   * @param url the URL template
+   * @return whether a handler was removed
+   */
+  public static synchronized boolean unregister(final HttpOperation verb, final String url) {
+    // Find the handlers for the URL
+    final UrlTemplate key = new UrlTemplate(url);
+    Route route = handlers.get(key);
+    if ((route == null) || (route.getHandler(verb) == null)) {
+      return false;
+    }
+    
+    // Drop the URL if nothing is left, and publish the new routes
+    route = route.with(verb, null);
+    if (route.isEmpty()) {
+      handlers.remove(key);
+      route = null;
+    } else {
+      handlers.put(route.getTemplate(), route);
     }
+    routes = routes.with(key, route);
+    return true;
   }
   
   public static Response process(final Request request, final Config cfg) {
@@ -80,61 +133,39 @@ public final class Registrar {
         return handleTraceRequest(request);
       } else {
         // Trace is not supported (not enabled in the properties file)
-        return new Response().setCode(405);
+        return request.newResponse().setCode(405);
       }
     }
     
-    // Check if we have any endpoints registered
-    if (map.isEmpty()) {
-      return null;
-    }
-    
-    // See if the map contains any URLs matching the request's URL (template or not)
-    final UrlTemplate urlImpl = new UrlTemplate(request.getURL());
-    final UrlTemplate urlTemplate = findMatchingUrlTemplate(urlImpl);
-    if (urlTemplate == null) {
-      return null;
-    }
-    
-    // Find the map entry by the URL template
-    final List<UrlHandler> list = map.get(urlTemplate);
-    if (list == null) {
+    // See if any route matches the request's URL
+    final RouteNode node = routes.match(request.getURL());
+    if (node == null) {
       return null;
     }
+    final Route route = node.getRoute();
     
-    // If we find a match, see if there's an entry for the HTTP operation
-    final UrlHandler handler = getUrlHandler(request.getOperation(), list);
+    // If we find a match, see if there's a handler for the HTTP operation
+    final RequestInterface handler = route.getHandler(request.getOperation());
     
-    // If there's no verb match, return 4xx, with a list of the supported operations
+    // If there's no verb match, return 405, with a list of the supported operations
     if (handler == null) {
-      final Response resp = new Response().setCode(405);
-      
-      // Return 4xx with a list of supported operations
-      final StringBuilder sb = new StringBuilder(30);
-      for (UrlHandler uh : list) {
-        if (sb.length() > 0) {
-          sb.append(", ");
-        }
-        sb.append(uh.getVerb().toString());
-      }
-      
-      // Add the field to the header and return the response
-      resp.addToHeader(HeaderField.RES_ALLOW, sb.toString());
+      final Response resp = request.newResponse().setCode(405);
+      resp.addToHeader(HeaderField.RES_ALLOW, route.getAllow());
       return resp;
     }
     
     // We have a match, so add the values matching the URL template to the request
-    updateRequest(request, urlImpl, urlTemplate);
+    updateRequest(request, request.getURL(), route.getTemplate());
     
     // Call the handler and return the response
-    final Response response = handler.getHandler().process(request);
+    final Response response = handler.process(request);
     return response;
   }
   
   
   private static Response handleTraceRequest(final Request request) {
     // Declare our response object
-    Response resp = new Response(200);
+    Response resp = request.newResponse();
     resp.addToHeader(HeaderField.RES_CONTENT_TYPE, "message/http");
     
     // Build a body of the request headers
@@ -166,24 +197,7 @@ public final class Registrar {
   }
 
 
-  private static UrlTemplate findMatchingUrlTemplate(UrlTemplate urlImpl) {
-    // Verify we have entries in the map
-    if ((map == null) || map.isEmpty()) {
-      return null;
-    }
-    
-    // Iterate over each template and look for a match
-    for (UrlTemplate key : map.keySet()) {
-      if (key.matchesImpl(urlImpl)) {
-        return key;
-      }
-    }
-    
-    return null;
-  }
-  
-  
-  private static void updateRequest(final Request request, final UrlTemplate urlImpl,
+  private static void updateRequest(final Request request, final String url,
       final UrlTemplate urlTemp) {
     
     // Get the fields from the template
@@ -195,11 +209,19 @@ public final class Registrar {
       return;
     }
     
-    // Iterate over each field and provide its value
-    int i = -1;
+    // Iterate over each field and the matching URL segment
+    final int len = url.length();
+    int end = 0;
     while (fields.hasNext()) {
-      // Increment our counter
-      ++i;
+      // Find the next segment, skipping empty ones
+      int start = end;
+      while ((start < len) && (url.charAt(start) == '/')) {
+        ++start;
+      }
+      end = url.indexOf('/', start);
+      if (end < 0) {
+        end = len;
+      }
       
       // Get the current field
       final TemplateField field = fields.next();
@@ -209,24 +231,11 @@ public final class Registrar {
         continue;
       }
       
-      // Get the value from the URL implementation
-      final String value = urlImpl.getFieldByPosition(i);
+      // Get the value from the URL
+      final String value = url.substring(start, end);
       
       // Save the variable name and value
       request.addTemplateVariable(field.getField(), value);
     }
   }
-
-
-  private static UrlHandler getUrlHandler(final HttpOperation verb, List<UrlHandler> list) {
-    // Find a match on the verb
-    for (UrlHandler uh : list) {
-      if (verb.equals(uh.getVerb())) {
-        return uh;
-      }
-    }
-    
-    // No match found
-    return null;
-  }
 }
@@ -0,0 +1,729 @@
+package io.miti.shortstop.server;
+
+import io.miti.shortstop.model.HttpOperation;
+import io.miti.shortstop.model.Request;
+import io.miti.shortstop.model.RequestHeaders;
+import io.miti.shortstop.util.HeaderField;
+import io.miti.shortstop.util.Utility;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
+
+public final class RequestDecoder {
+  
+  /** The initial size of the input buffer. */
+  private static final int INITIAL_SIZE = 4 * 1024;
+  
+  /** The largest request line and header we accept. */
+  private static final int MAX_HEAD_SIZE = 64 * 1024;
+  
+  /** The protocols we support, so they don't need a new string per request. */
+  private static final String HTTP_1_1 = "HTTP/1.1";
+  private static final String HTTP_1_0 = "HTTP/1.0";
+  
+  /** The HTTP operations, in the order of HttpOperation.values(). */
+  private static final HttpOperation[] OPERATIONS = HttpOperation.values();
+  
+  /** The slots of the well-known request header names, indexed by the length of the name. */
+  private static final int[][] KNOWN_SLOTS = buildKnownSlots();
+  
+  /** The slot of the Content-Length header. */
+  private static final int CONTENT_LENGTH_SLOT = RequestHeaders.slotOf(HeaderField.REQ_CONTENT_LENGTH);
+  
+  /** The slot of the Transfer-Encoding header. */
+  private static final int TRANSFER_ENCODING_SLOT = RequestHeaders.slotOf(HeaderField.REQ_TRANSFER_ENCODING);
+  
+  /** The input buffer, reused for every request on the connection. */
+  private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_SIZE);
+  
+  /** The start of the data that has not been decoded yet. */
+  private int readPos = 0;
+  
+  /** Where to resume looking for the end of the header. */
+  private int scanPos = 0;
+  
+  /** The start of the current line while looking for the end of the header. */
+  private int lineStart = 0;
+  
+  /** The request whose header has been read, and is waiting for its body. */
+  private Request pending = null;
+  
+  /** The largest request body we accept. */
+  private int maxBodyLength = Integer.MAX_VALUE;
+  
+  /** The number of bytes in the body of the pending request. */
+  private int bodyLength = 0;
+  
+  /** The body of the pending request, as it's being filled. */
+  private ByteBuffer body = null;
+  
+  /** Hashes the body as it arrives, when the request has a Content-MD5 header. */
+  private MessageDigest md5 = null;
+  
+  /** Whether the body of the pending request is being hashed. */
+  private boolean hashingBody = false;
+  
+  /** The number of bytes of the body that have been hashed. */
+  private int hashed = 0;
+  
+  /** Where bodies are read from when they're streamed to handlers, or null to buffer them. */
+  private InputStream source = null;
+  
+  /** The body being streamed to a handler, or null. */
+  private BodyInputStream streamed = null;
+  
+  /** The stream used for every streamed body on the connection. */
+  private final BodyInputStream bodyInputStream = new BodyInputStream();
+  
+  /** The request returned by decode(), reused for every request on the connection. */
+  private final Request request = new Request();
+  
+  /**
+   * Default constructor.
+   */
+  public RequestDecoder() {
+    super();
+  }
+  
+  /**
+   * Stream request bodies to the handlers, reading them from the
+   * source only as the handlers ask for them, instead of reading
+   * them into memory first.  This is only for blocking streams.
+   * 
+   * @param source the stream the client's data is read from
+   */
+  public void setSource(final InputStream source) {
+    this.source = source;
+  }
+  
+  /**
+   * Set the largest request body that's accepted.  A request with a
+   * larger body is returned with a reject code of 413, and the body
+   * is not read.
+   * 
+   * @param maxBodyLength the largest body, in bytes
+   */
+  public void setMaxBodyLength(final int maxBodyLength) {
+    this.maxBodyLength = maxBodyLength;
+  }
+  
+  /**
+   * Return whether part of a streamed body has not been read by
+   * the handler yet.  It's skipped before the next request is decoded.
+   * 
+   * @return whether there is an unread streamed body
+   */
+  public boolean hasUnreadBody() {
+    return ((streamed != null) && (streamed.remaining > 0));
+  }
+  
+  /**
+   * Return the buffer to read data from the client into.  The
+   * buffer always has some space remaining.  While the body of a
+   * request is being read, this is the array that will hold the
+   * body, so it is read without an extra copy.
+   * 
+   * @return the buffer to fill
+   */
+  public ByteBuffer getReadBuffer() {
+    if ((body != null) && (readPos == buffer.position())) {
+      return body;
+    }
+    
+    if (!buffer.hasRemaining()) {
+      makeRoom();
+    }
+    
+    return buffer;
+  }
+  
+  /**
+   * Make room in the buffer, first by dropping the data that has
+   * already been decoded, and then by growing the buffer.
+   */
+  private void makeRoom() {
+    if (readPos > 0) {
+      // Move the undecoded data to the start of the buffer
+      buffer.flip();
+      buffer.position(readPos);
+      buffer.compact();
+      scanPos -= readPos;
+      lineStart -= readPos;
+      readPos = 0;
+    }
+    
+    if (!buffer.hasRemaining()) {
+      // Double the size of the buffer
+      final ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+      buffer.flip();
+      bigger.put(buffer);
+      buffer = bigger;
+    }
+  }
+  
+  /**
+   * Decode the next request from the data read so far.  The same
+   * Request object is returned for every request, so the previous
+   * request must be finished with before this is called.
+   * 
+   * @return the request, or null if more data is needed
+   * @throws IOException if the request header is too large
+   */
+  public Request decode() throws IOException {
+    // Skip whatever the handler didn't read of a streamed body
+    if (streamed != null) {
+      streamed.skipRemaining();
+      streamed = null;
+      scanPos = readPos;
+      lineStart = readPos;
+    }
+    
+    // Read the header, if we haven't already
+    if (pending == null) {
+      final int headEnd = findEndOfHead();
+      if (headEnd < 0) {
+        if ((buffer.position() - readPos) > MAX_HEAD_SIZE) {
+          throw new IOException("Request header too large");
+        }
+        return null;
+      }
+      
+      bodyLength = 0;
+      pending = parseHead(readPos, headEnd);
+      readPos = headEnd;
+      if (bodyLength > maxBodyLength) {
+        // Don't read the body; the connection is closed after the response
+        pending.setRejectCode(413);
+        bodyLength = 0;
+      }
+      
+      if ((bodyLength > 0) && (source != null)) {
+        // Let the handler read the body as it needs it, hashing it
+        // as it's read if the handler will check it
+        streamed = bodyInputStream;
+        pending.setBodyStream(streamed, bodyLength);
+        streamed.start(bodyLength, startHashing(pending) ? pending : null);
+      } else if (bodyLength > 0) {
+        // Hash the body as it arrives, if the handler will check it
+        body = ByteBuffer.allocate(bodyLength);
+        hashingBody = startHashing(pending);
+        hashed = 0;
+      }
+    }
+    
+    // Move any body bytes that were read with the header into the body
+    if (body != null) {
+      final int num = Math.min(buffer.position() - readPos, body.remaining());
+      body.put(buffer.array(), readPos, num);
+      readPos += num;
+      
+      // Hash what has arrived since the last time
+      if (hashingBody) {
+        md5.update(body.array(), hashed, body.position() - hashed);
+        hashed = body.position();
+      }
+      
+      // Wait until the whole body has been read
+      if (body.hasRemaining()) {
+        return null;
+      }
+      pending.setMessageBodyBytes(body.array());
+      if (hashingBody) {
+        pending.setMessageBodyMD5(Utility.encodeDigest(md5));
+        hashingBody = false;
+      }
+    }
+    
+    // Get ready for the next request
+    final Request msg = pending;
+    pending = null;
+    body = null;
+    if (readPos == buffer.position()) {
+      // Everything has been decoded, so start at the beginning again
+      buffer.clear();
+      readPos = 0;
+    }
+    scanPos = readPos;
+    lineStart = readPos;
+    
+    return msg;
+  }
+  
+  /**
+   * Get ready to hash the body of a request as it arrives, if the
+   * request has a Content-MD5 header for the handler to check.
+   * 
+   * @param msg the request
+   * @return whether the body will be hashed
+   */
+  private boolean startHashing(final Request msg) {
+    if (!msg.headerContainsKey(HeaderField.REQ_CONTENT_MD5)) {
+      return false;
+    } else if (md5 == null) {
+      md5 = Utility.newMD5Digest();
+      return (md5 != null);
+    }
+    
+    // Drop anything left from a body that wasn't read to the end
+    md5.reset();
+    return true;
+  }
+  
+  /**
+   * Look for the empty line at the end of the header.
+   * 
+   * @return the index just past the end of the header, or -1 if not found
+   */
+  private int findEndOfHead() {
+    final byte[] data = buffer.array();
+    final int end = buffer.position();
+    for (int i = scanPos; i < end; ++i) {
+      if (data[i] != '\n') {
+        continue;
+      }
+      
+      // Get the length of the line, ignoring any carriage return
+      int len = i - lineStart;
+      if ((len > 0) && (data[i - 1] == '\r')) {
+        --len;
+      }
+      
+      if (len == 0) {
+        if (lineStart == readPos) {
+          // Skip empty lines before the request line
+          readPos = i + 1;
+        } else {
+          scanPos = i + 1;
+          lineStart = scanPos;
+          return scanPos;
+        }
+      }
+      
+      lineStart = i + 1;
+    }
+    
+    scanPos = end;
+    return -1;
+  }
+  
+  /**
+   * Parse the request line and the header, straight from the bytes.
+   * 
+   * @param start the index of the start of the request line
+   * @param end the index just past the end of the header
+   * @return the request
+   */
+  private Request parseHead(final int start, final int end) {
+    final byte[] data = buffer.array();
+    
+    // Find the end of the request line, and the two spaces in it
+    final int next = findLineFeed(data, start, end) + 1;
+    final int lineEnd = trimLineEnd(data, start, next);
+    final int space0 = indexOf(data, start, lineEnd, (byte) ' ');
+    final int space1 = (space0 < 0) ? -1 : indexOf(data, space0 + 1, lineEnd, (byte) ' ');
+    if ((space0 <= start) || (space1 < 0) || (space1 == space0 + 1) || (space1 == lineEnd - 1)) {
+      // Not a request line, so return a request with no protocol
+      request.reset();
+      return request;
+    }
+    
+    // Parse the request line
+    final Request msg = request;
+    msg.reset();
+    msg.setRequestLine(parseOperation(data, start, space0),
+        decodeEndpoint(data, space0 + 1, space1), parseProtocol(data, space1 + 1, lineEnd));
+    if (!msg.isValidProtocol()) {
+      return msg;
+    }
+    
+    // Parse the key and value pairs in the header; the values are
+    // kept as bytes, and only made into strings if they're used
+    final RequestHeaders headers = msg.getHeaders();
+    headers.setData(data, next, end - next);
+    boolean sawLength = false;
+    int pos = next;
+    while (pos < end) {
+      final int nextLine = findLineFeed(data, pos, end) + 1;
+      final int endOfLine = trimLineEnd(data, pos, nextLine);
+      final int colon = indexOf(data, pos, endOfLine, (byte) ':');
+      if (colon > pos) {
+        // Trim the value
+        int valueStart = colon + 1;
+        int valueEnd = endOfLine;
+        while ((valueStart < valueEnd) && (data[valueStart] <= ' ')) {
+          ++valueStart;
+        }
+        while ((valueEnd > valueStart) && (data[valueEnd - 1] <= ' ')) {
+          --valueEnd;
+        }
+        
+        // We can't tell where a body with a transfer coding ends, and a
+        // repeated or invalid length could be read differently by a proxy
+        // in front of us, so these are rejected rather than guessed at
+        final int slot = findKnownSlot(data, pos, colon);
+        if (slot == TRANSFER_ENCODING_SLOT) {
+          msg.setRejectCode(501);
+        } else if (slot == CONTENT_LENGTH_SLOT) {
+          bodyLength = parseContentLength(data, valueStart, valueEnd);
+          if (sawLength || (bodyLength < 0)) {
+            msg.setRejectCode(400);
+          }
+          sawLength = true;
+        }
+        if (slot >= 0) {
+          headers.addKnown(slot, valueStart, valueEnd);
+        } else {
+          headers.addOther(new String(data, pos, colon - pos, StandardCharsets.ISO_8859_1),
+              valueStart, valueEnd);
+        }
+      }
+      
+      pos = nextLine;
+    }
+    
+    // The body of a rejected request isn't read
+    if (msg.getRejectCode() != 0) {
+      bodyLength = 0;
+    }
+    
+    // Populate the query string parameters based on the URL
+    msg.parseURLandParameters();
+    
+    return msg;
+  }
+  
+  /**
+   * Return the index of the first occurrence of a byte in a range.
+   * 
+   * @param data the data
+   * @param start the start of the range
+   * @param end the end of the range (exclusive)
+   * @param value the byte to find
+   * @return the index of the byte, or -1 if not found
+   */
+  private static int indexOf(final byte[] data, final int start, final int end, final byte value) {
+    for (int i = start; i < end; ++i) {
+      if (data[i] == value) {
+        return i;
+      }
+    }
+    
+    return -1;
+  }
+  
+  /**
+   * Return the index of the line feed at the end of a line.
+   * 
+   * @param data the data
+   * @param start the start of the line
+   * @param end the end of the header (exclusive), which is always after a line feed
+   * @return the index of the line feed
+   */
+  private static int findLineFeed(final byte[] data, final int start, final int end) {
+    final int index = indexOf(data, start, end, (byte) '\n');
+    return (index < 0) ? (end - 1) : index;
+  }
+  
+  /**
+   * Return the end of a line, without the line feed or carriage return.
+   * 
+   * @param data the data
+   * @param start the start of the line
+   * @param next the start of the next line
+   * @return the index just past the last character of the line
+   */
+  private static int trimLineEnd(final byte[] data, final int start, final int next) {
+    int end = next;
+    if ((end > start) && (data[end - 1] == '\n')) {
+      --end;
+    }
+    if ((end > start) && (data[end - 1] == '\r')) {
+      --end;
+    }
+    
+    return end;
+  }
+  
+  /**
+   * Match the verb against the HTTP operations.
+   * 
+   * @param data the data
+   * @param start the start of the verb
+   * @param end the end of the verb (exclusive)
+   * @return the HTTP operation, or UNKNOWN
+   */
+  private static HttpOperation parseOperation(final byte[] data, final int start, final int end) {
+    for (HttpOperation op : OPERATIONS) {
+      if (matches(data, start, end, op.name(), false)) {
+        return op;
+      }
+    }
+    
+    return HttpOperation.UNKNOWN;
+  }
+  
+  /**
+   * Return the protocol, using a shared string for the ones we support.
+   * 
+   * @param data the data
+   * @param start the start of the protocol
+   * @param end the end of the protocol (exclusive)
+   * @return the protocol
+   */
+  private static String parseProtocol(final byte[] data, final int start, final int end) {
+    if (matches(data, start, end, HTTP_1_1, false)) {
+      return HTTP_1_1;
+    } else if (matches(data, start, end, HTTP_1_0, false)) {
+      return HTTP_1_0;
+    }
+    
+    return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+  }
+  
+  /**
+   * Decode the endpoint, converting hex encodings (e.g., "%20") to the
+   * bytes they represent, and the result from UTF-8.
+   * 
+   * @param data the data
+   * @param start the start of the endpoint
+   * @param end the end of the endpoint (exclusive)
+   * @return the decoded endpoint
+   */
+  private static String decodeEndpoint(final byte[] data, final int start, final int end) {
+    // Check for hex-encoded strings
+    if (indexOf(data, start, end, (byte) '%') < 0) {
+      return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+    
+    final byte[] out = new byte[end - start];
+    int len = 0;
+    for (int i = start; i < end; ++i) {
+      final byte b = data[i];
+      if (b != '%') {
+        out[len++] = b;
+      } else if (i < (end - 2)) {
+        final int hi = Character.digit(data[i + 1], 16);
+        final int lo = Character.digit(data[i + 2], 16);
+        out[len++] = ((hi < 0) || (lo < 0)) ? (byte) '_' : (byte) ((hi << 4) + lo);
+        i += 2;
+      }
+    }
+    
+    return new String(out, 0, len, StandardCharsets.UTF_8);
+  }
+  
+  /**
+   * Return the slot of a well-known header name (in any case).
+   * 
+   * @param data the data
+   * @param start the start of the name
+   * @param end the end of the name (exclusive)
+   * @return the slot of the header name, or -1 if it isn't well-known
+   */
+  private static int findKnownSlot(final byte[] data, final int start, final int end) {
+    final int len = end - start;
+    if (len < KNOWN_SLOTS.length) {
+      for (int slot : KNOWN_SLOTS[len]) {
+        if (matches(data, start, end, RequestHeaders.getKnownName(slot), true)) {
+          return slot;
+        }
+      }
+    }
+    
+    return -1;
+  }
+  
+  /**
+   * Parse the content length from the bytes of the header value.
+   * 
+   * @param data the data
+   * @param start the start of the value
+   * @param end the end of the value (exclusive)
+   * @return the content length, or -1 if the value is not a valid length
+   */
+  private static int parseContentLength(final byte[] data, final int start, final int end) {
+    long value = 0L;
+    for (int i = start; i < end; ++i) {
+      final int digit = data[i] - '0';
+      if ((digit < 0) || (digit > 9) || (value > Integer.MAX_VALUE)) {
+        return -1;
+      }
+      value = (value * 10L) + digit;
+    }
+    
+    if ((start == end) || (value > Integer.MAX_VALUE)) {
+      return -1;
+    }
+    
+    return (int) value;
+  }
+  
+  /**
+   * Return whether a range of ASCII bytes matches a string.
+   * 
+   * @param data the data
+   * @param start the start of the range
+   * @param end the end of the range (exclusive)
+   * @param str the string to compare to
+   * @param ignoreCase whether to ignore case
+   * @return whether the bytes match the string
+   */
+  private static boolean matches(final byte[] data, final int start, final int end,
+                                 final String str, final boolean ignoreCase) {
+    final int len = str.length();
+    if ((end - start) != len) {
+      return false;
+    }
+    
+    for (int i = 0; i < len; ++i) {
+      int b = data[start + i];
+      int ch = str.charAt(i);
+      if (ignoreCase) {
+        b = ((b >= 'A') && (b <= 'Z')) ? (b + 32) : b;
+        ch = ((ch >= 'A') && (ch <= 'Z')) ? (ch + 32) : ch;
+      }
+      if (b != ch) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Group the slots of the well-known header names by the length of
+   * the name, for quick lookup.
+   * 
+   * @return the slots, indexed by length
+   */
+  private static int[][] buildKnownSlots() {
+    final int numKnown = RequestHeaders.getKnownCount();
+    int maxLen = 0;
+    for (int slot = 0; slot < numKnown; ++slot) {
+      maxLen = Math.max(maxLen, RequestHeaders.getKnownName(slot).length());
+    }
+    
+    final int[][] table = new int[maxLen + 1][];
+    for (int len = 0; len <= maxLen; ++len) {
+      int count = 0;
+      for (int slot = 0; slot < numKnown; ++slot) {
+        if (RequestHeaders.getKnownName(slot).length() == len) {
+          ++count;
+        }
+      }
+      
+      table[len] = new int[count];
+      count = 0;
+      for (int slot = 0; slot < numKnown; ++slot) {
+        if (RequestHeaders.getKnownName(slot).length() == len) {
+          table[len][count++] = slot;
+        }
+      }
+    }
+    
+    return table;
+  }
+  
+  /**
+   * A stream over the body of the current request.  The bytes
+   * already in the buffer are returned first, then the rest are
+   * read from the source, but never past the end of the body.
+   */
+  private final class BodyInputStream extends InputStream {
+    
+    /** The number of bytes of the body not read yet. */
+    private int remaining = 0;
+    
+    /** The request whose body is hashed as it's read, or null. */
+    private Request hashFor = null;
+    
+    /** The array used to read a single byte. */
+    private final byte[] one = new byte[1];
+    
+    /**
+     * Start reading the body of the next request.
+     * 
+     * @param length the length of the body
+     * @param msg the request to save the MD5 hash of the body in,
+     *            once it has all been read, or null to not hash it
+     */
+    private void start(final int length, final Request msg) {
+      remaining = length;
+      hashFor = msg;
+    }
+    
+    @Override
+    public int read() throws IOException {
+      return ((read(one, 0, 1) < 0) ? -1 : (one[0] & 0xFF));
+    }
+    
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if (remaining == 0) {
+        return -1;
+      } else if (len == 0) {
+        return 0;
+      }
+      
+      // Use the bytes already read with the header first
+      final int max = Math.min(len, remaining);
+      final int buffered = buffer.position() - readPos;
+      int numRead;
+      if (buffered > 0) {
+        numRead = Math.min(max, buffered);
+        System.arraycopy(buffer.array(), readPos, b, off, numRead);
+        readPos += numRead;
+      } else {
+        numRead = source.read(b, off, max);
+        if (numRead < 0) {
+          throw new EOFException(remaining + " bytes of the body are missing");
+        }
+      }
+      
+      remaining -= numRead;
+      if (hashFor != null) {
+        md5.update(b, off, numRead);
+        if (remaining == 0) {
+          hashFor.setMessageBodyMD5(Utility.encodeDigest(md5));
+          hashFor = null;
+        }
+      }
+      
+      return numRead;
+    }
+    
+    @Override
+    public int available() throws IOException {
+      return Math.min(remaining, (buffer.position() - readPos) + source.available());
+    }
+    
+    /**
+     * Read and drop the rest of the body.  Anything read past the
+     * end of the body is kept in the buffer for the next request.
+     * 
+     * @throws IOException if the client closed the connection
+     */
+    private void skipRemaining() throws IOException {
+      while (remaining > 0) {
+        final int buffered = buffer.position() - readPos;
+        if (buffered > 0) {
+          final int num = Math.min(remaining, buffered);
+          readPos += num;
+          remaining -= num;
+        } else {
+          buffer.clear();
+          readPos = 0;
+          final int numRead = source.read(buffer.array(), 0, buffer.capacity());
+          if (numRead < 0) {
+            throw new EOFException(remaining + " bytes of the body are missing");
+          }
+          buffer.position(numRead);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,254 @@
+package io.miti.shortstop.server;
+
+import io.miti.shortstop.model.EncodedHead;
+import io.miti.shortstop.model.HeaderList;
+import io.miti.shortstop.model.Response;
+import io.miti.shortstop.util.DefaultHeaders;
+import io.miti.shortstop.util.HttpDate;
+import io.miti.shortstop.util.ResponseCodeCache;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public final class ResponseEncoder {
+  
+  /** The starting size of the buffer. */
+  private static final int INITIAL_SIZE = 1024;
+  
+  /** The separator between a header name and its value. */
+  private static final byte[] SEPARATOR = {':', ' '};
+  
+  /** The end of a line. */
+  private static final byte[] CRLF = {'\r', '\n'};
+  
+  /** The start of a status line that isn't in the cache. */
+  private static final byte[] HTTP_1_1 = "HTTP/1.1 ".getBytes(StandardCharsets.US_ASCII);
+  
+  /** The buffer the head is written into; reused for each response. */
+  private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_SIZE);
+  
+  /** Writes a body into the buffer, after the head. */
+  private final OutputStream bodyStream = new OutputStream() {
+    @Override
+    public void write(final int b) {
+      put((byte) b);
+    }
+    
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+      ensureRoom(len);
+      buffer.put(b, off, len);
+    }
+  };
+  
+  /**
+   * Default constructor.
+   */
+  public ResponseEncoder() {
+    super();
+  }
+  
+  /**
+   * Encode the status line and header of a response, ending with
+   * the blank line.  The buffer is owned by this encoder, and its
+   * contents only last until the next call.
+   * 
+   * @param response the response
+   * @return the buffer holding the head, ready to be read
+   */
+  public ByteBuffer encodeHead(final Response response) {
+    writeHead(response);
+    return finish();
+  }
+  
+  /**
+   * Start encoding a response by writing its status line and header
+   * into the buffer.  A body can then be written with
+   * getBodyStream(), before calling finish().
+   * 
+   * @param response the response
+   */
+  public void writeHead(final Response response) {
+    buffer.clear();
+    
+    // Write the status line and headers, or the copy encoded earlier
+    // followed by the headers added since
+    final EncodedHead encoded = response.getEncoded();
+    if (encoded != null) {
+      put(encoded.getBytes());
+    } else {
+      writeStatusLine(response);
+    }
+    writeHeaders(response.getHeaders());
+    
+    // Write the default headers that are still in effect
+    final int defaults = response.getDefaultHeaders();
+    for (int i = 0; i < DefaultHeaders.COUNT; ++i) {
+      if ((defaults & (1 << i)) == 0) {
+        continue;
+      }
+      
+      put(DefaultHeaders.getLine(i));
+      if (DefaultHeaders.isDate(i)) {
+        put(HttpDate.nowBytes());
+        put(CRLF);
+      }
+    }
+    
+    // Add an extra line (to mark the end of the header)
+    put(CRLF);
+  }
+  
+  /**
+   * Encode the status line and headers of a response once, so they
+   * can be sent with many copies of it (see Response.setEncoded()).
+   * The default headers in liveDefaults are left out, to be written
+   * each time a copy is sent; the Date header is always left out.
+   * The blank line that ends the head isn't included.
+   * 
+   * @param response the response
+   * @param liveDefaults the default headers to leave out, as bits
+   * @return the encoded head
+   */
+  public EncodedHead encodeShared(final Response response, final int liveDefaults) {
+    buffer.clear();
+    writeStatusLine(response);
+    
+    // Write the headers, and keep a copy for looking them up
+    final HeaderList source = response.getHeaders();
+    final HeaderList headers = new HeaderList();
+    writeHeaders(source);
+    for (int i = 0; i < source.size(); ++i) {
+      headers.add(source.getName(i), source.getValue(i));
+    }
+    
+    // Write the default headers that don't change
+    final int live = liveDefaults | (1 << DefaultHeaders.DATE);
+    final int defaults = response.getDefaultHeaders();
+    for (int i = 0; i < DefaultHeaders.COUNT; ++i) {
+      if (((defaults & (1 << i)) != 0) && ((live & (1 << i)) == 0)) {
+        put(DefaultHeaders.getLine(i));
+        headers.add(DefaultHeaders.getName(i), DefaultHeaders.getValue(i));
+      }
+    }
+    
+    final byte[] bytes = Arrays.copyOf(buffer.array(), buffer.position());
+    return new EncodedHead(response.getCode(), response.getMessage(), bytes, headers,
+        defaults & live);
+  }
+  
+  /**
+   * Write the status line, using the cached copy if we can.
+   * 
+   * @param response the response
+   */
+  private void writeStatusLine(final Response response) {
+    final byte[] statusLine = ResponseCodeCache.getCache().getStatusLine(response.getCode(),
+        response.getMessage());
+    if (statusLine != null) {
+      put(statusLine);
+    } else {
+      put(HTTP_1_1);
+      put(Integer.toString(response.getCode()));
+      put((byte) ' ');
+      put(response.getMessage());
+      put(CRLF);
+    }
+  }
+  
+  /**
+   * Write the headers that were set on a response.
+   * 
+   * @param headers the headers
+   */
+  private void writeHeaders(final HeaderList headers) {
+    final int numHeaders = headers.size();
+    for (int i = 0; i < numHeaders; ++i) {
+      put(headers.getName(i));
+      put(SEPARATOR);
+      put(headers.getValue(i));
+      put(CRLF);
+    }
+  }
+  
+  /**
+   * Return a stream that writes into the buffer, after the head.
+   * 
+   * @return the stream
+   */
+  public OutputStream getBodyStream() {
+    return bodyStream;
+  }
+  
+  /**
+   * Finish encoding the response.  The buffer is owned by this
+   * encoder, and its contents only last until the next response is
+   * started.
+   * 
+   * @return the buffer holding the response, ready to be read
+   */
+  public ByteBuffer finish() {
+    buffer.flip();
+    return buffer;
+  }
+  
+  /**
+   * Make sure the buffer has room for more bytes, growing it if needed.
+   * 
+   * @param size the number of bytes to make room for
+   */
+  private void ensureRoom(final int size) {
+    if (buffer.remaining() >= size) {
+      return;
+    }
+    
+    final ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+        buffer.position() + size));
+    buffer.flip();
+    bigger.put(buffer);
+    buffer = bigger;
+  }
+  
+  /**
+   * Write a byte.
+   * 
+   * @param b the byte
+   */
+  private void put(final byte b) {
+    ensureRoom(1);
+    buffer.put(b);
+  }
+  
+  /**
+   * Write an array of bytes.
+   * 
+   * @param bytes the bytes
+   */
+  private void put(final byte[] bytes) {
+    ensureRoom(bytes.length);
+    buffer.put(bytes);
+  }
+  
+  /**
+   * Write a string as UTF-8.  ASCII strings, which is nearly every
+   * header, are copied without encoding them into a new array.
+   * 
+   * @param str the string
+   */
+  private void put(final String str) {
+    final int len = str.length();
+    for (int i = 0; i < len; ++i) {
+      if (str.charAt(i) >= 0x80) {
+        put(str.getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+    }
+    
+    ensureRoom(len);
+    for (int i = 0; i < len; ++i) {
+      buffer.put((byte) str.charAt(i));
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package io.miti.shortstop.server;
+
+import io.miti.shortstop.model.HttpOperation;
+import io.miti.shortstop.model.RequestInterface;
+import io.miti.shortstop.model.UrlTemplate;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+public final class Route {
+  
+  /** The URL template. */
+  private final UrlTemplate template;
+  
+  /** The handler for each supported HTTP operation. */
+  private final EnumMap<HttpOperation, RequestInterface> handlers;
+  
+  /** The value of the Allow header, sent when an operation isn't supported. */
+  private final String allow;
+  
+  /**
+   * Constructor.  The map of handlers is copied.
+   * 
+   * @param template the URL template
+   * @param handlers the handler for each supported HTTP operation
+   */
+  public Route(final UrlTemplate template, final Map<HttpOperation, RequestInterface> handlers) {
+    this.template = template;
+    this.handlers = new EnumMap<HttpOperation, RequestInterface>(handlers);
+    
+    // Build the list of supported operations
+    final StringBuilder sb = new StringBuilder(30);
+    for (HttpOperation verb : this.handlers.keySet()) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append(verb.toString());
+    }
+    allow = sb.toString();
+  }
+  
+  /**
+   * Return a copy of this route, with the handler for an operation
+   * set (or removed).
+   * 
+   * @param verb the HTTP operation
+   * @param handler the handler, or null to remove the operation
+   * @return the new route
+   */
+  public Route with(final HttpOperation verb, final RequestInterface handler) {
+    final EnumMap<HttpOperation, RequestInterface> map = new EnumMap<HttpOperation, RequestInterface>(handlers);
+    if (handler == null) {
+      map.remove(verb);
+    } else {
+      map.put(verb, handler);
+    }
+    
+    return new Route(template, map);
+  }
+  
+  /**
+   * Return whether the route has no handlers.
+   * 
+   * @return whether no operations are supported
+   */
+  public boolean isEmpty() {
+    return handlers.isEmpty();
+  }
+  
+  /**
+   * Return the URL template.
+   * 
+   * @return the URL template
+   */
+  public UrlTemplate getTemplate() {
+    return template;
+  }
+  
+  /**
+   * Return the handler for an HTTP operation.
+   * 
+   * @param verb the HTTP operation
+   * @return the handler, or null if the operation isn't supported
+   */
+  public RequestInterface getHandler(final HttpOperation verb) {
+    return handlers.get(verb);
+  }
+  
+  /**
+   * Return the supported operations, as the value of an Allow header.
+   * 
+   * @return the supported operations (e.g., "PUT, GET")
+   */
+  public String getAllow() {
+    return allow;
+  }
+}
@@ -0,0 +1,225 @@
+package io.miti.shortstop.server;
+
+import io.miti.shortstop.model.TemplateField;
+import io.miti.shortstop.model.UrlTemplate;
+
+import java.util.Iterator;
+
+public final class RouteNode {
+  
+  /** An empty array of children. */
+  private static final RouteNode[] NO_CHILDREN = new RouteNode[0];
+  
+  /** The literal path segment matched by this node (null for a variable or the root). */
+  private final String segment;
+  
+  /** The children for literal segments, sorted by segment. */
+  private RouteNode[] literals = NO_CHILDREN;
+  
+  /** The child for a variable segment (e.g., ":id"), or null. */
+  private RouteNode variable = null;
+  
+  /** The route that ends at this node, or null. */
+  private Route route = null;
+  
+  /**
+   * Create a root node.
+   */
+  public RouteNode() {
+    this(null);
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param segment the literal segment, or null
+   */
+  private RouteNode(final String segment) {
+    this.segment = segment;
+  }
+  
+  /**
+   * Return the route that ends at this node.
+   * 
+   * @return the route, or null if no route ends here
+   */
+  public Route getRoute() {
+    return route;
+  }
+  
+  /**
+   * Return a new tree with the route for a template set (or removed),
+   * below this (root) node.  Only the nodes on the path to the route
+   * are copied, and the rest are shared, so this tree isn't changed
+   * and can still be used by other threads.
+   * 
+   * @param template the URL template
+   * @param newRoute the route, or null to remove the route for the template
+   * @return the root of the new tree
+   */
+  public RouteNode with(final UrlTemplate template, final Route newRoute) {
+    return with(template.getFields(), newRoute);
+  }
+  
+  /**
+   * Return a copy of this node with the route set at the end of the
+   * rest of the template's fields.
+   * 
+   * @param fields the rest of the template's fields (may be null)
+   * @param newRoute the route, or null to remove it
+   * @return the copy of this node
+   */
+  private RouteNode with(final Iterator<TemplateField> fields, final Route newRoute) {
+    final RouteNode copy = new RouteNode(segment);
+    copy.literals = literals;
+    copy.variable = variable;
+    copy.route = route;
+    if ((fields == null) || !fields.hasNext()) {
+      copy.route = newRoute;
+      return copy;
+    }
+    
+    final TemplateField field = fields.next();
+    if (field.isVariable()) {
+      // Copy the variable child, dropping it if nothing is left below it
+      final RouteNode child = ((variable == null) ? new RouteNode(null) : variable).with(fields, newRoute);
+      copy.variable = child.isEmpty() ? null : child;
+      return copy;
+    }
+    
+    // Copy the literal child, keeping the array sorted
+    final String key = field.getField();
+    final int index = find(literals, key, 0, key.length());
+    final RouteNode child = ((index >= 0) ? literals[index] : new RouteNode(key)).with(fields, newRoute);
+    if ((index >= 0) && child.isEmpty()) {
+      // Nothing is left below the child, so drop it
+      copy.literals = new RouteNode[literals.length - 1];
+      System.arraycopy(literals, 0, copy.literals, 0, index);
+      System.arraycopy(literals, index + 1, copy.literals, index, literals.length - index - 1);
+    } else if (index >= 0) {
+      copy.literals = literals.clone();
+      copy.literals[index] = child;
+    } else if (!child.isEmpty()) {
+      final int insertAt = -(index + 1);
+      copy.literals = new RouteNode[literals.length + 1];
+      System.arraycopy(literals, 0, copy.literals, 0, insertAt);
+      copy.literals[insertAt] = child;
+      System.arraycopy(literals, insertAt, copy.literals, insertAt + 1, literals.length - insertAt);
+    }
+    
+    return copy;
+  }
+  
+  /**
+   * Return whether no route ends at or below this node.
+   * 
+   * @return whether the node is empty
+   */
+  private boolean isEmpty() {
+    return ((route == null) && (literals.length == 0) && (variable == null));
+  }
+  
+  /**
+   * Find the node for a URL path, below this (root) node.  Literal
+   * segments are preferred over variables.  Empty segments are
+   * ignored.  Nothing is allocated.
+   * 
+   * @param path the URL path (e.g., "/api/1/2")
+   * @return the node where a matching route ends, or null if none match
+   */
+  public RouteNode match(final String path) {
+    return match((path == null) ? "" : path, 0);
+  }
+  
+  /**
+   * Match the rest of the path, starting at this node.
+   * 
+   * @param path the URL path
+   * @param pos the position in the path to start at
+   * @return the node where a matching route ends, or null if none match
+   */
+  private RouteNode match(final String path, final int pos) {
+    // Skip to the start of the next segment
+    final int len = path.length();
+    int start = pos;
+    while ((start < len) && (path.charAt(start) == '/')) {
+      ++start;
+    }
+    
+    // At the end of the path, this node must end a route
+    if (start == len) {
+      return ((route == null) ? null : this);
+    }
+    
+    // Find the end of the segment
+    int end = path.indexOf('/', start);
+    if (end < 0) {
+      end = len;
+    }
+    
+    // Try the literal child for the segment first
+    final RouteNode[] children = literals;
+    final int index = find(children, path, start, end);
+    if (index >= 0) {
+      final RouteNode node = children[index].match(path, end);
+      if (node != null) {
+        return node;
+      }
+    }
+    
+    // Then try a variable
+    final RouteNode child = variable;
+    return ((child == null) ? null : child.match(path, end));
+  }
+  
+  /**
+   * Binary search the children for a segment.
+   * 
+   * @param children the children, sorted by segment
+   * @param str the string holding the segment
+   * @param start the start of the segment
+   * @param end the end of the segment (exclusive)
+   * @return the index of the child, or (-(insertion point) - 1) if not found
+   */
+  private static int find(final RouteNode[] children, final String str,
+                          final int start, final int end) {
+    int low = 0;
+    int high = children.length - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final int cmp = compare(children[mid].segment, str, start, end);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    
+    return -(low + 1);
+  }
+  
+  /**
+   * Compare a string to part of another string, like String.compareTo().
+   * 
+   * @param key the string
+   * @param str the string holding the part
+   * @param start the start of the part
+   * @param end the end of the part (exclusive)
+   * @return negative, zero or positive, as key is less than, equal to or greater than the part
+   */
+  private static int compare(final String key, final String str, final int start, final int end) {
+    final int len1 = key.length();
+    final int len2 = end - start;
+    final int min = Math.min(len1, len2);
+    for (int i = 0; i < min; ++i) {
+      final int diff = key.charAt(i) - str.charAt(start + i);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    
+    return (len1 - len2);
+  }
+}
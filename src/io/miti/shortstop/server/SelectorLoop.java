@@ -0,0 +1,214 @@
+package io.miti.shortstop.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+public final class SelectorLoop implements Runnable, Executor {
+  
+  /** How often to look for idle connections, in milliseconds. */
+  private static final long SWEEP_INTERVAL = 1_000L;
+  
+  /** The server that handles requests and writes responses. */
+  private final Shortstop server;
+  
+  /** Runs the handlers for this loop's connections. */
+  private final Executor handlers;
+  
+  /** How long a connection can be idle, in milliseconds. */
+  private final long idleTimeout;
+  
+  /** When we last looked for idle connections. */
+  private long lastSweep = System.currentTimeMillis();
+  
+  /** The selector for this loop's connections. */
+  private final Selector selector;
+  
+  /** Connections accepted but not registered with the selector yet. */
+  private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+  
+  /** Work handed to this loop by other threads (such as finished responses), in order. */
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  
+  /** Whether the loop should keep running. */
+  private volatile boolean running = true;
+  
+  /**
+   * Constructor.
+   * 
+   * @param server the server that handles requests
+   * @param handlers runs the handlers
+   * @param idleTimeout how long a connection can be idle, in seconds
+   * @throws IOException if the selector cannot be opened
+   */
+  public SelectorLoop(final Shortstop server, final Executor handlers,
+                      final int idleTimeout) throws IOException {
+    this.server = server;
+    this.handlers = handlers;
+    this.idleTimeout = idleTimeout * 1000L;
+    selector = Selector.open();
+  }
+  
+  /**
+   * Hand a new connection to this loop.  This is called from the
+   * accepting thread.
+   * 
+   * @param channel the accepted (non-blocking) channel
+   */
+  public void addConnection(final SocketChannel channel) {
+    newChannels.add(channel);
+    selector.wakeup();
+  }
+  
+  /**
+   * Run a task on this loop's thread, after the tasks handed to it
+   * before.  This is called from other threads.
+   * 
+   * @param task the task
+   */
+  @Override
+  public void execute(final Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+  
+  /**
+   * Stop the loop.
+   */
+  public void stop() {
+    running = false;
+    selector.wakeup();
+  }
+  
+  /**
+   * Run the event loop.
+   */
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        selector.select(SWEEP_INTERVAL);
+      } catch (IOException e) {
+        System.err.println("Selector error: " + e.getMessage());
+        break;
+      }
+      
+      // Register any new connections, and run the tasks handed to us
+      registerNewChannels();
+      runTasks();
+      
+      // Handle the connections that are ready
+      final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        final SelectionKey key = keys.next();
+        keys.remove();
+        handleKey(key);
+      }
+      
+      // Close any connections that have been idle too long
+      closeIdle();
+    }
+    
+    closeAll();
+  }
+  
+  /**
+   * Register the new connections with the selector, for reading.
+   */
+  private void registerNewChannels() {
+    SocketChannel channel = newChannels.poll();
+    while (channel != null) {
+      try {
+        final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new NioConnection(server, channel, key, handlers, this));
+      } catch (ClosedChannelException e) {
+        // The client went away already
+      }
+      channel = newChannels.poll();
+    }
+  }
+  
+  /**
+   * Run the tasks handed to this loop, in order.
+   */
+  private void runTasks() {
+    Runnable task = tasks.poll();
+    while (task != null) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        // Don't let a failing task stop the loop
+        e.printStackTrace();
+      }
+      task = tasks.poll();
+    }
+  }
+  
+  /**
+   * Handle a connection that is ready for reading or writing.
+   * 
+   * @param key the selection key for the connection
+   */
+  private void handleKey(final SelectionKey key) {
+    final NioConnection conn = (NioConnection) key.attachment();
+    try {
+      if (key.isValid() && key.isReadable()) {
+        conn.onReadable();
+      }
+      if (key.isValid() && key.isWritable()) {
+        conn.onWritable();
+      }
+    } catch (IOException e) {
+      System.out.println("IOException: " + e.getMessage());
+      conn.close();
+    } catch (RuntimeException e) {
+      // Don't let a failing handler stop the loop
+      e.printStackTrace();
+      conn.close();
+    }
+  }
+  
+  /**
+   * Close the connections that have been idle longer than the
+   * timeout.  This includes clients that are slow to send a request.
+   */
+  private void closeIdle() {
+    final long now = System.currentTimeMillis();
+    if ((now - lastSweep) < SWEEP_INTERVAL) {
+      return;
+    }
+    
+    lastSweep = now;
+    final long cutoff = now - idleTimeout;
+    for (SelectionKey key : selector.keys()) {
+      final NioConnection conn = (NioConnection) key.attachment();
+      if ((conn != null) && conn.isIdleSince(cutoff)) {
+        conn.close();
+      }
+    }
+  }
+  
+  /**
+   * Close every connection and the selector.
+   */
+  private void closeAll() {
+    for (SelectionKey key : selector.keys()) {
+      final Object conn = key.attachment();
+      if (conn instanceof NioConnection) {
+        ((NioConnection) conn).close();
+      }
+    }
+    
+    try {
+      selector.close();
+    } catch (IOException e) {
+      System.out.println("IOException: " + e.getMessage());
+    }
+  }
+}
@@ -1,36 +1,73 @@
 package io.miti.shortstop.server;
 
+import io.miti.shortstop.util.ByteRanges;
+import io.miti.shortstop.util.ContentCoding;
 import io.miti.shortstop.util.ContentTypeCache;
 import io.miti.shortstop.util.HeaderField;
+import io.miti.shortstop.util.HttpDate;
 import io.miti.shortstop.util.Utility;
 
 import io.miti.shortstop.model.*;
 
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Locale;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public final class Shortstop {
   
   /** Default for line-endings. */
   public static final String CRLF = "\r\n";
   
+  /** The size of the output buffer, which holds the responses to pipelined requests. */
+  private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+  
+  /** How long to keep reading from a client after rejecting its request, before closing, in milliseconds. */
+  static final long LINGER_TIME = 2_000L;
+  
+  /** The most bytes to read from a client after rejecting its request, before closing. */
+  static final long LINGER_BYTES = 1024L * 1024L;
+  
   /** The configuration. */
   private Config cfg = null;
   
+  /** The downloaded files kept in memory, or null if they're always sent from disk. */
+  private FileCache fileCache = null;
+  
+  /** The large downloaded files that are mapped into memory, or null if none are. */
+  private MappedFileCache mappedCache = null;
+  
+  /** The worker pool in the pool mode, or null. */
+  private ThreadPoolExecutor pool = null;
+  
+  /** In the pool mode, the workers that kept-alive connections may hold while they wait for a request. */
+  private Semaphore keepAliveWorkers = null;
+  
   
   /**
    * Default constructor.
@@ -48,6 +85,15 @@ public final class Shortstop {
    */
   public Shortstop(final Config cfg) {
     this.cfg = cfg;
+    if (cfg.canDownloadFiles() && (cfg.getFileCacheSize() > 0L)) {
+      fileCache = new FileCache(cfg.getFileDirectory(), cfg.getFileCacheSize(),
+          cfg.getFileCacheMaxFileSize(), cfg.getFileCacheCheckInterval(),
+          cfg.getCompressMinSize());
+    }
+    if (cfg.canDownloadFiles() && (cfg.getFileMapSize() > 0L)) {
+      mappedCache = new MappedFileCache(cfg.getFileDirectory(), cfg.getFileMapSize(),
+          cfg.getFileMapMinFileSize(), cfg.getFileCacheCheckInterval(), cfg.getFileMapMinHits());
+    }
   }
   
   
@@ -90,12 +136,20 @@ public final class Shortstop {
   /**
    * Start a server.
    */
-  private void startServer() {
+  void startServer() {
+    
+    // The NIO engine accepts and handles connections itself
+    if (cfg.getExecutionMode() == ExecutionMode.NIO) {
+      new NioServer(this, cfg).start(getServerURL(false, cfg.getPort()));
+      return;
+    }
     
-    // Try to start the server
-    ServerSocket s = null;
+    // Try to start the server; the socket is opened as a channel so that
+    // files can be sent straight to the accepted connections (sendfile)
+    ServerSocketChannel s = null;
     try {
-      s = new ServerSocket(cfg.getPort());
+      s = ServerSocketChannel.open();
+      s.bind(new InetSocketAddress(cfg.getPort()));
       final String url = getServerURL(false, cfg.getPort());
       System.out.println("Server running: " + url);
     } catch (IOException ioe) {
@@ -108,21 +162,138 @@ public final class Shortstop {
       return;
     }
     
+    // Create the executor for connections (null means use this thread)
+    final ExecutorService executor = createExecutor();
+    
     // Listen for connections from clients
     while (true) {
       try {
         // Block for a connection
-        Socket socket = s.accept();
+        Socket socket = s.accept().socket();
         
         // We got a connection, so handle it
-        handleConn(socket);
+        if (executor == null) {
+          handleConn(socket);
+        } else {
+          dispatchConn(executor, socket);
+        }
       } catch(IOException e) {
         System.err.println(e);
+        if (executor != null) {
+          executor.shutdown();
+        }
         return;
       }
     }
   }
   
+  
+  /**
+   * Create the executor for handling connections, based on the
+   * execution mode in the configuration.
+   * 
+   * @return the executor, or null if connections are handled on the accept thread
+   */
+  private ExecutorService createExecutor() {
+    if (cfg.getExecutionMode() == ExecutionMode.SINGLE) {
+      return null;
+    } else if (cfg.getExecutionMode() == ExecutionMode.VIRTUAL) {
+      final ExecutorService virtual = createVirtualExecutor();
+      if (virtual != null) {
+        System.out.println("Running each connection on a virtual thread");
+        return virtual;
+      }
+      
+      // Not supported by this JVM, so fall back to the worker pool
+      System.err.println("Virtual threads are not supported by this JVM; using the worker pool");
+    }
+    
+    // A queue size of zero means connections are handed directly to a worker
+    final int size = cfg.getWorkerPoolSize();
+    final BlockingQueue<Runnable> queue = (cfg.getWorkerQueueSize() > 0)
+        ? new ArrayBlockingQueue<Runnable>(cfg.getWorkerQueueSize())
+        : new SynchronousQueue<Runnable>();
+    
+    // The caller policy runs the connection on the accept thread; the
+    // others throw, and are handled in dispatchConn()
+    final ThreadPoolExecutor.AbortPolicy abort = new ThreadPoolExecutor.AbortPolicy();
+    final ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS,
+        queue, new WorkerThreadFactory("shortstop-worker"),
+        (cfg.getRejectionPolicy() == RejectionPolicy.CALLER)
+            ? new ThreadPoolExecutor.CallerRunsPolicy() : abort);
+    pool.prestartAllCoreThreads();
+    
+    // A kept-alive connection holds its worker while it waits for the
+    // next request, so leave a quarter of the workers (at least one)
+    // for new connections
+    this.pool = pool;
+    keepAliveWorkers = new Semaphore(size - Math.max(1, size / 4));
+    
+    System.out.println(String.format("Worker pool: %d threads, queue size %d, %s policy",
+        size, cfg.getWorkerQueueSize(), cfg.getRejectionPolicy().toString().toLowerCase(Locale.US)));
+    return pool;
+  }
+  
+  
+  /**
+   * Create an executor that starts a new virtual thread for each
+   * connection.  This is looked up by reflection, since virtual
+   * threads need Java 21 or later.
+   * 
+   * @return the executor, or null if virtual threads are not available
+   */
+  private static ExecutorService createVirtualExecutor() {
+    try {
+      final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+  
+  
+  /**
+   * Hand a connection to a worker.  If the pool refuses it, apply
+   * the rejection policy.
+   * 
+   * @param executor the executor
+   * @param socket the connection socket
+   */
+  private void dispatchConn(final ExecutorService executor, final Socket socket) {
+    try {
+      executor.execute(() -> handleConn(socket));
+    } catch (RejectedExecutionException ree) {
+      rejectConn(socket);
+    }
+  }
+  
+  
+  /**
+   * Refuse a connection because the server is too busy.
+   * 
+   * @param socket the connection socket
+   */
+  private void rejectConn(final Socket socket) {
+    try {
+      // Tell the client to try again, unless we're discarding
+      if (cfg.getRejectionPolicy() == RejectionPolicy.REJECT) {
+        final Response response = new Response(503);
+        response.addToHeader(HeaderField.RES_RETRY_AFTER, 1);
+        final BufferedOutputStream os = new BufferedOutputStream(socket.getOutputStream());
+        writeResponse(response, os, socket.getChannel(), new ResponseEncoder());
+        os.flush();
+      }
+    } catch (IOException e) {
+      System.out.println("IOException: " + e.getMessage());
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        System.out.println("IOException: " + e.getMessage());
+      }
+    }
+  }
+  
   /**
    * We received a request from a client, so handle it now.
    * 
@@ -130,61 +301,71 @@ public final class Shortstop {
    */
   private void handleConn(final Socket socket) {
     
-    // Define the input stream reader and output stream writer
-    BufferedReader is = null;
+    // Define the input stream and output stream writer
+    InputStream is = null;
     BufferedOutputStream os = null;
+    boolean holdsWorker = false;
     try {
       // String host = socket.getInetAddress().toString();
       // System.out.println("Accepted connection from " + host);
       
-      // Read from the socket
-      is = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      // Limit how long we wait for a request, or for the next one
+      socket.setSoTimeout(cfg.getKeepAliveTimeout() * 1000);
+      is = socket.getInputStream();
+      os = new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
       
-      // Get the HTTP request
-      final String request = is.readLine();
-      // System.out.println("Request: " + request);
-      
-      // If there is input in the buffer, read and process it now
-      Response response = null;
-      if (request != null) {
-        // Create our Request object
-        final Request msg = new Request(request);
-        System.out.println(msg.toString());
-        if (msg.isValidProtocol()) {
-          
-          // Read the remainder of the request (header and any message body)
-          readRemainderOfRequest(is, msg);
-          
-          // Handle the request
-          response = handleRequest(msg);
+      // Handle requests until the client or the server closes the connection
+      final RequestDecoder decoder = newDecoder();
+      decoder.setSource(is);
+      final ResponseEncoder encoder = new ResponseEncoder();
+      int count = 0;
+      boolean keepAlive = true;
+      boolean rejected = false;
+      while (keepAlive) {
+        // Get the next HTTP request; the responses written so far are
+        // only flushed once there are no more requests already read
+        final Request msg = readRequest(is, os, decoder);
+        if (msg == null) {
+          break;
         }
         
-        // Clear out the request
-        msg.cleanup();
+        // Decide whether to keep the connection open after this request
+        ++count;
+        keepAlive = canKeepAlive(msg, count);
+        rejected = (msg.getRejectCode() != 0);
+        if (keepAlive && (pool != null)) {
+          // Don't let idle connections hold the workers that new ones
+          // need, or keep any open while connections wait for a worker
+          if (!holdsWorker) {
+            holdsWorker = keepAliveWorkers.tryAcquire();
+          }
+          keepAlive = holdsWorker && pool.getQueue().isEmpty();
+        }
+        
+        // Handle the request and write the response
+        final Response response = respond(msg);
+        keepAlive = setConnectionHeader(response, keepAlive, count);
+        writeResponse(response, os, socket.getChannel(), encoder);
       }
       
-      // If the response object is null, set it now
-      if (response == null) {
-        response = new Response();
+      // Send the last response
+      os.flush();
+      if (rejected) {
+        drainInput(socket, is);
       }
-      
-      // Write the response
-      os = new BufferedOutputStream(socket.getOutputStream());
-      writeResponse(response, os);
-      
-      // Close the socket
-      socket.close();
+    } catch (SocketTimeoutException e) {
+      // The connection was idle for too long
     } catch (IOException e) {
       System.out.println("IOException: " + e.getMessage());
+    } catch (UncheckedIOException e) {
+      // Reading a body into memory failed (e.g., the client closed the
+      // connection partway through it)
+      if (!(e.getCause() instanceof SocketTimeoutException)) {
+        System.out.println("IOException: " + e.getCause().getMessage());
+      }
     } finally {
-      // Close the input stream
-      if (is != null) {
-        try {
-          is.close();
-          is = null;
-        } catch (IOException e) {
-          System.out.println("IOException: " + e.getMessage());
-        }
+      if (holdsWorker) {
+        keepAliveWorkers.release();
       }
       
       // Close the output stream
@@ -192,13 +373,242 @@ public final class Shortstop {
         try {
           os.close();
         } catch (IOException e) {
-          e.printStackTrace();
+          System.out.println("IOException: " + e.getMessage());
         }
         os = null;
       }
+      
+      // Close the socket
+      try {
+        socket.close();
+      } catch (IOException e) {
+        System.out.println("IOException: " + e.getMessage());
+      }
+    }
+  }
+  
+  
+  /**
+   * After rejecting a request, stop sending and read and drop what
+   * the client is still sending (e.g., the rest of a body that was
+   * too large), for a limited time, before the connection is closed.
+   * Closing with unread data resets the connection, which can throw
+   * away the response before the client reads it.
+   * 
+   * @param socket the connection socket
+   * @param is the stream the client's data is read from
+   * @throws IOException if reading fails, or the time runs out
+   */
+  private static void drainInput(final Socket socket, final InputStream is) throws IOException {
+    socket.shutdownOutput();
+    final long deadline = System.currentTimeMillis() + LINGER_TIME;
+    final byte[] data = new byte[8192];
+    long total = 0L;
+    while (total < LINGER_BYTES) {
+      final long wait = deadline - System.currentTimeMillis();
+      if (wait <= 0L) {
+        break;
+      }
+      
+      socket.setSoTimeout((int) wait);
+      final int numRead = is.read(data);
+      if (numRead < 0) {
+        break;
+      }
+      total += numRead;
     }
   }
   
+  
+  /**
+   * Create the decoder for the requests on a connection.
+   * 
+   * @return the decoder
+   */
+  RequestDecoder newDecoder() {
+    final RequestDecoder decoder = new RequestDecoder();
+    decoder.setMaxBodyLength(cfg.getMaxRequestBodySize());
+    return decoder;
+  }
+  
+  
+  /**
+   * Read the next request from the client.  If the client pipelined
+   * it behind the previous request, it's returned without flushing
+   * the output, so the responses are sent in as few writes as possible.
+   * 
+   * @param is the input stream
+   * @param os the output stream, flushed before blocking for input
+   * @param decoder the decoder holding any data already read
+   * @return the request, or null if the client closed the connection
+   * @throws IOException thrown when reading from the input stream
+   */
+  private Request readRequest(final InputStream is, final OutputStream os,
+                              final RequestDecoder decoder) throws IOException {
+    
+    // If the last handler didn't read all of its body, send the waiting
+    // responses before skipping it, since the client may be waiting for them
+    if (decoder.hasUnreadBody()) {
+      os.flush();
+    }
+    
+    // See if the next request has already been read
+    Request msg = decoder.decode();
+    if (msg != null) {
+      return msg;
+    }
+    
+    // Send the waiting responses before we block
+    os.flush();
+    
+    // Read until the decoder has a complete request
+    while (msg == null) {
+      final ByteBuffer buffer = decoder.getReadBuffer();
+      final int numRead = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+          buffer.remaining());
+      if (numRead < 0) {
+        return null;
+      }
+      
+      buffer.position(buffer.position() + numRead);
+      msg = decoder.decode();
+    }
+    
+    return msg;
+  }
+  
+  
+  /**
+   * Return whether the connection can stay open after this request.
+   * HTTP/1.1 connections are persistent unless the client asks to
+   * close, and HTTP/1.0 connections only if the client asks.
+   * 
+   * @param msg the request
+   * @param count the number of requests on this connection so far
+   * @return whether to keep the connection open
+   */
+  boolean canKeepAlive(final Request msg, final int count) {
+    if (!cfg.keepAliveEnabled() || (count >= cfg.getKeepAliveMax()) || !msg.isValidProtocol()
+        || (msg.getRejectCode() != 0)) {
+      return false;
+    }
+    
+    final String conn = msg.headerGetKey(HeaderField.REQ_CONNECTION);
+    if (msg.getProtocol().equals("HTTP/1.1")) {
+      return !hasToken(conn, "close");
+    }
+    
+    return hasToken(conn, "keep-alive");
+  }
+  
+  
+  /**
+   * Return whether a comma-separated header value contains a token,
+   * ignoring case.
+   * 
+   * @param value the header value (may be null)
+   * @param token the token to look for
+   * @return whether the value contains the token
+   */
+  private static boolean hasToken(final String value, final String token) {
+    if (value == null) {
+      return false;
+    }
+    
+    final StringTokenizer st = new StringTokenizer(value, ",");
+    while (st.hasMoreTokens()) {
+      if (st.nextToken().trim().equalsIgnoreCase(token)) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  
+  /**
+   * Tell the client whether the connection stays open.  It can't if
+   * the end of the body is marked by closing the connection.
+   * 
+   * @param response the response
+   * @param canKeepAlive whether the connection can stay open
+   * @param count the number of requests on this connection so far
+   * @return whether the connection stays open
+   */
+  boolean setConnectionHeader(final Response response, final boolean canKeepAlive, final int count) {
+    final boolean keepAlive = canKeepAlive && !(response.hasBodyWriter() && !response.isHeadOnly()
+        && (response.headerGetKey(HeaderField.RES_TRANSFER_ENCODING) == null));
+    if (keepAlive) {
+      response.addToHeader(HeaderField.RES_CONNECTION, "keep-alive");
+      response.addToHeader(HeaderField.RES_KEEP_ALIVE, "timeout=" + cfg.getKeepAliveTimeout()
+          + ", max=" + (cfg.getKeepAliveMax() - count));
+    } else {
+      response.addToHeader(HeaderField.RES_CONNECTION, "close");
+    }
+    
+    return keepAlive;
+  }
+  
+  
+  /**
+   * Generate the response for a request that has been completely
+   * read, and clear out the request.
+   * 
+   * @param msg the request
+   * @return the response (never null)
+   * @throws IOException thrown when reading a requested file
+   */
+  Response respond(final Request msg) throws IOException {
+    
+    // Print the request line, if asked to
+    if (cfg.logRequests()) {
+      System.out.println(msg.getOperation() + " " + msg.getEndpoint() + " " + msg.getProtocol());
+    }
+    
+    // Handle the request, if it's valid and wasn't rejected while it was read
+    Response response = null;
+    if (msg.getRejectCode() != 0) {
+      response = msg.newResponse().setCode(msg.getRejectCode());
+    } else if (msg.isValidProtocol()) {
+      response = handleRequest(msg);
+      
+      // Answer a conditional request with 304 if the client is up to date
+      if (response != null) {
+        checkConditional(msg, response);
+        checkRange(msg, response);
+      }
+      
+      // A streamed body is sent in chunks, if the client supports them
+      if ((response != null) && response.hasBodyWriter() && msg.getProtocol().equals("HTTP/1.1")) {
+        response.addToHeader(HeaderField.RES_TRANSFER_ENCODING, "chunked");
+      }
+    }
+    
+    // If the response object is null, set it now
+    if (response == null) {
+      response = msg.newResponse();
+    }
+    
+    // A HEAD request gets the head a GET would, and 1xx, 204 and 304
+    // responses never have a body, so nothing is sent after the head
+    final int code = response.getCode();
+    if ((code < 200) || (code == 204) || (code == 304)) {
+      if (code != 304) {
+        response.removeFromHeader(HeaderField.RES_CONTENT_LENGTH);
+      }
+      response.removeFromHeader(HeaderField.RES_TRANSFER_ENCODING);
+      response.setHeadOnly();
+    } else if (msg.getOperation() == HttpOperation.HEAD) {
+      response.setHeadOnly();
+    }
+    
+    // Clear out the request
+    msg.cleanup();
+    
+    return response;
+  }
+  
+  
   /**
    * Handle requests.
    * 
@@ -210,11 +620,15 @@ public final class Shortstop {
     // If the request has an MD5 value for the content, evaluate it now
     final String reqMD5 = msg.headerGetKey(HeaderField.REQ_CONTENT_MD5);
     if ((reqMD5 != null) && (msg.hasBody())) {
-      // Compute the MD5 hash for the content and see if they match
-      StringBuilder sb = new StringBuilder().append(msg.getMessageBody());
-      final String md5 = Utility.getMD5(sb.toString().getBytes(StandardCharsets.UTF_8));
+      // The decoder hashes the body as it's read, so read the rest of
+      // a streamed body (for the handler) to finish the hash
+      final ByteBuffer body = msg.getMessageBodyBuffer();
+      String md5 = msg.getMessageBodyMD5();
+      if (md5 == null) {
+        md5 = Utility.getMD5(body);
+      }
       if (!md5.equals(reqMD5)) {
-        Response resp = new Response(400);
+        Response resp = msg.newResponse().setCode(400);
         return resp;
       }
     }
@@ -243,7 +657,7 @@ public final class Shortstop {
         }
 
         // Instantiate the response now
-        response = new Response();
+        response = msg.newResponse();
         
         // Check for .. in the file name, and disallow those, since
         // we want to ensure the user can only retrieve files from the
@@ -252,28 +666,52 @@ public final class Shortstop {
           canContinue = (!url.contains(".."));
         }
 
-        // Passed the tests so far
-        if (canContinue) {
+        // Passed the tests so far; send the file from memory if it's cached
+        // (a request for ranges is sent from the file), or from its
+        // mapping if it's large and often requested
+        final boolean compressible = cfg.canCompressExtension(ext);
+        final FileCache.Entry cached = (canContinue && (fileCache != null)
+            && !msg.headerContainsKey(HeaderField.REQ_RANGE)) ? fileCache.get(url) : null;
+        final MappedFileCache.Entry mapped = (canContinue && (cached == null) && (mappedCache != null))
+            ? mappedCache.get(url) : null;
+        if (cached != null) {
+          // Compress it if the client accepts that; the body depends on Accept-Encoding
+          final ContentCoding coding = compressible
+              ? ContentCoding.negotiate(msg.headerGetKey(HeaderField.REQ_ACCEPT_ENCODING))
+              : ContentCoding.IDENTITY;
+          fileCache.setBody(cached, response, coding, cfg.shouldComputeMD5Response());
+          if (compressible) {
+            response.addToHeader(HeaderField.RES_VARY, HeaderField.REQ_ACCEPT_ENCODING);
+          }
+        } else if ((mapped != null) && mappedCache.setBody(mapped, response, cfg.shouldComputeMD5Response())) {
+          // The body is sent from the file's mapping
+          canContinue = true;
+        } else if (canContinue) {
           // Verify the file exists (as a file)
           final File file = new File(cfg.getFileDirectory(), url);
           if (!fileCanBeDownloaded(file)) {
             canContinue = false;
           } else {
-            final Path path = file.toPath();
-            byte[] data = Files.readAllBytes(path);
-            response.setCode(200);
-            response.setBodyAsBytes(data);
-            response.addToHeader(HeaderField.RES_CONTENT_TYPE, ContentTypeCache.getCache().getContentTypeMIMEType(ext));
-            canContinue = true;
+            response.setBodyAsFile(file);
           }
         }
+        
+        if (canContinue) {
+          response.setCode(200);
+          response.addToHeader(HeaderField.RES_CONTENT_TYPE, ContentTypeCache.getCache().getContentTypeMIMEType(ext));
+          
+          // Let clients keep the file, as long as they revalidate it,
+          // and ask for just part of it
+          response.addToHeader(HeaderField.RES_CACHE_CONTROL, "no-cache");
+          response.addToHeader(HeaderField.RES_ACCEPT_RANGES, "bytes");
+        }
 
         // If an error occurred, mark the response as 404
         if (!canContinue) {
           response.setAs404();
         }
       } else {
-        response = new Response().setAs404();
+        response = msg.newResponse().setAs404();
       }
     }
     
@@ -282,6 +720,145 @@ public final class Shortstop {
   }
   
   
+  /**
+   * If the request is a conditional GET (or HEAD), and the response's
+   * validators show the client's copy is current, turn the response
+   * into a 304.  If-None-Match is checked first; If-Modified-Since is
+   * only used without it.
+   * 
+   * @param msg the request
+   * @param response the response
+   */
+  private void checkConditional(final Request msg, final Response response) {
+    // Only a successful GET or HEAD can be answered with 304
+    final HttpOperation op = msg.getOperation();
+    if (((op != HttpOperation.GET) && (op != HttpOperation.HEAD)) || (response.getCode() != 200)) {
+      return;
+    }
+    
+    // Add a validator to handler responses, if configured
+    if (cfg.shouldAddResponseETags()) {
+      response.addETagFromBody();
+    }
+    
+    // Compare the entity tags
+    final String ifNoneMatch = msg.headerGetKey(HeaderField.REQ_IF_NONE_MATCH);
+    if (ifNoneMatch != null) {
+      if (etagMatches(ifNoneMatch, response.headerGetKey(HeaderField.RES_ETAG))) {
+        response.setAsNotModified();
+      }
+      return;
+    }
+    
+    // Compare the dates
+    final long since = HttpDate.parse(msg.headerGetKey(HeaderField.REQ_IF_MODIFIED_SINCE));
+    if (since >= 0L) {
+      final long modified = HttpDate.parse(response.headerGetKey(HeaderField.RES_LAST_MODIFIED));
+      if ((modified >= 0L) && (modified <= since)) {
+        response.setAsNotModified();
+      }
+    }
+  }
+  
+  
+  /**
+   * If the request is a GET for part of a file (a Range header), and
+   * any If-Range validator matches, send just those ranges: one as a
+   * 206, several as a 206 with a multipart/byteranges body, or a 416
+   * if none of them are inside the file.  An invalid Range header is
+   * ignored, and the whole file is sent.
+   * 
+   * @param msg the request
+   * @param response the response
+   */
+  private void checkRange(final Request msg, final Response response) {
+    // Only a successful GET of a file can be answered with a range
+    if ((msg.getOperation() != HttpOperation.GET) || (response.getCode() != 200)
+        || !response.hasBodyFile()) {
+      return;
+    }
+    
+    final String range = msg.headerGetKey(HeaderField.REQ_RANGE);
+    if (range == null) {
+      return;
+    }
+    
+    // If the client's copy has changed, it gets the whole file
+    final String ifRange = msg.headerGetKey(HeaderField.REQ_IF_RANGE);
+    if ((ifRange != null) && !ifRangeMatches(ifRange, response)) {
+      return;
+    }
+    
+    final long fileLength = response.getBodyFileLength();
+    final long[] ranges = ByteRanges.parse(range, fileLength);
+    if (ranges == null) {
+      return;
+    } else if (ranges.length == 0) {
+      response.setAsRangeNotSatisfiable(fileLength);
+    } else {
+      response.setBodyFileRanges(ranges);
+    }
+  }
+  
+  
+  /**
+   * Return whether an If-Range value matches the response.  An
+   * entity tag must match exactly (strong comparison); a date must
+   * equal the Last-Modified date.
+   * 
+   * @param ifRange the If-Range value
+   * @param response the response
+   * @return whether the ranges should be sent
+   */
+  private static boolean ifRangeMatches(final String ifRange, final Response response) {
+    final String value = ifRange.trim();
+    if (value.startsWith("\"") || value.startsWith("W/")) {
+      final String etag = response.headerGetKey(HeaderField.RES_ETAG);
+      return ((etag != null) && !etag.startsWith("W/") && etag.equals(value));
+    }
+    
+    final long date = HttpDate.parse(value);
+    return ((date >= 0L) && (date == HttpDate.parse(response.headerGetKey(HeaderField.RES_LAST_MODIFIED))));
+  }
+  
+  
+  /**
+   * Return whether an If-None-Match value matches an entity tag.
+   * The comparison is weak, so "W/" prefixes are ignored.
+   * 
+   * @param ifNoneMatch the If-None-Match value (a list of tags, or "*")
+   * @param etag the response's entity tag
+   * @return whether any tag in the list matches
+   */
+  private static boolean etagMatches(final String ifNoneMatch, final String etag) {
+    if (etag == null) {
+      return false;
+    }
+    
+    final String target = stripWeak(etag);
+    final StringTokenizer tokens = new StringTokenizer(ifNoneMatch, ",");
+    while (tokens.hasMoreTokens()) {
+      final String tag = tokens.nextToken().trim();
+      if (tag.equals("*") || stripWeak(tag).equals(target)) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  
+  /**
+   * Remove the weak prefix ("W/") from an entity tag.
+   * 
+   * @param tag the entity tag
+   * @return the tag without the prefix
+   */
+  private static String stripWeak(final String tag) {
+    return (tag.startsWith("W/") ? tag.substring(2) : tag);
+  }
+  
+  
   /**
    * Return whether the specified file can be downloaded.
    * 
@@ -312,112 +889,184 @@ public final class Shortstop {
   }
   
   /**
-   * Write the response to the client.
+   * Serialize the response, as it would be written to the client.
+   * If the body is a file, only the header is returned.
    * 
    * @param response the response
-   * @param os the output writer
-   * @throws IOException thrown when writing
+   * @param encoder the encoder
+   * @return the encoder's buffer holding the response, ready to be read
    */
-  private void writeResponse(final Response response, final OutputStream os)
-      throws IOException {
+  ByteBuffer encodeResponse(final Response response, final ResponseEncoder encoder) {
     
     // If we need to include the MD5 value in the response do so now
     if (cfg.shouldComputeMD5Response()) {
       response.addMD5();
     }
     
-    // Write a response
-    StringBuilder sb = new StringBuilder(100);
-    sb.append("HTTP/1.1 ").append(response.getCode()).append(" ").append(response.getMessage()).append(CRLF);
-    
-    // Write the header
-    Set<Entry<String, String>> entries = response.getHeaderIterator();
-    if (entries != null) {
-      for (Entry<String, String> entry : entries) {
-        final String key = entry.getKey();
-        final String value = entry.getValue();
-        sb.append(key).append(": ").append(value).append(CRLF);
-      }
+    // Write the head, then any body in memory (a streamed body is written in full)
+    encoder.writeHead(response);
+    if (response.isHeadOnly()) {
+      return encoder.finish();
     }
     
-    // Add an extra linefeed (to mark the end of the header)
-    sb.append(CRLF);
+    try {
+      if (response.hasBodyWriter()) {
+        writeStreamedBody(response, encoder.getBodyStream());
+      } else if (response.hasBody()) {
+        response.writeBody(encoder.getBodyStream());
+      }
+    } catch (IOException e) {
+      // Not thrown when writing to memory
+      throw new IllegalStateException(e);
+    }
     
-    // Write the header
-    os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    return encoder.finish();
+  }
+  
+  
+  /**
+   * Write the response to the client.  A file body is sent with
+   * FileChannel.transferTo, which lets the operating system copy it
+   * straight to the socket.
+   * 
+   * @param response the response
+   * @param os the output writer
+   * @param channel the socket channel behind os, or null to copy files through os
+   * @param encoder the encoder for the head
+   * @throws IOException thrown when writing
+   */
+  void writeResponse(final Response response, final OutputStream os,
+                     final WritableByteChannel channel,
+                     final ResponseEncoder encoder) throws IOException {
     
-    // Clear the buffer
-    sb.setLength(0);
+    // Write the status line and header
+    final ByteBuffer head = encodeHead(response, encoder);
+    os.write(head.array(), head.arrayOffset() + head.position(), head.remaining());
     
-    // Print any response here, plus CRLF
-    if (response.hasBody()) {
-      os.write(response.getBody());
-      os.write(CRLF.getBytes(StandardCharsets.UTF_8));
+    // Print any response here; nothing may follow it, since the
+    // next response on the connection starts right after the body
+    if (response.isHeadOnly()) {
+      // Release any mapping of the file, without sending it
+      final Closeable owner = response.takeBodyFileOwner();
+      if (owner != null) {
+        owner.close();
+      }
+    } else if (response.hasBodyFile()) {
+      // Release any mapping of the file once it's written
+      final Closeable owner = response.takeBodyFileOwner();
+      try {
+        writeFileBody(response, os, (channel == null) ? Channels.newChannel(os) : channel);
+      } finally {
+        if (owner != null) {
+          owner.close();
+        }
+      }
+    } else if (response.hasBodyWriter()) {
+      writeStreamedBody(response, os);
+    } else if (response.hasBody()) {
+      response.writeBody(os);
+    }
+  }
+  
+  
+  /**
+   * Let the handler's body writer write the body, in chunks if the
+   * response uses chunked transfer-encoding.
+   * 
+   * @param response the response
+   * @param os the output writer
+   * @throws IOException thrown when writing
+   */
+  static void writeStreamedBody(final Response response, final OutputStream os)
+      throws IOException {
+    if (response.headerGetKey(HeaderField.RES_TRANSFER_ENCODING) == null) {
+      // The body ends when the connection is closed
+      response.getBodyWriter().write(os);
+      return;
     }
     
-    os.flush();
+    final ChunkedOutputStream cos = new ChunkedOutputStream(os);
+    response.getBodyWriter().write(cos);
+    cos.finish();
   }
   
   
   /**
-   * Read the remainder of the request.
+   * Send the ranges of a file body (the whole file, unless the
+   * request asked for ranges) to the client, with the head of each
+   * part of a multipart body before it.  A mapped file is written
+   * from the mapping.
    * 
-   * @param is the input stream
-   * @param msg the request object
-   * @throws IOException thrown exception from reading the input stream
+   * @param response the response
+   * @param os the output writer
+   * @param channel the channel behind os
+   * @throws IOException thrown when reading the file or writing
    */
-  private void readRemainderOfRequest(final BufferedReader is, final Request msg)
-    throws IOException {
-    
-    // Read the header and store in the Request object
-    readHeader(is, msg);
-    
-    // Populate the query string parameters based on the URL
-    msg.parseURLandParameters();
-    
-    // Check if there is any content (message body) using the Content-Length
-    // field; if it's not in the header, assume there is no body
-    if (msg.headerContainsKey(HeaderField.RES_CONTENT_LENGTH)) {
-      final int conLen = Integer.parseInt(msg.headerGetKey(HeaderField.RES_CONTENT_LENGTH));
-      if (conLen > 0) {
-        // Allocate our buffer and read the message body
-        final char[] buffer = new char[conLen];
-        final int numRead = is.read(buffer, 0, conLen);
-        if (numRead != conLen) {
-          System.out.println(String.format("Error: Expected %d bytes but found %d in the body", conLen, numRead));
+  private static void writeFileBody(final Response response, final OutputStream os,
+                                    final WritableByteChannel channel) throws IOException {
+    final int count = response.getBodyFileRangeCount();
+    for (int i = 0; i <= count; ++i) {
+      final byte[] part = response.getBodyFilePart(i);
+      if (part != null) {
+        os.write(part);
+      }
+      os.flush();
+      
+      if (i < count) {
+        final ByteBuffer mapped = response.getBodyFileMapping(i);
+        if (mapped != null) {
+          while (mapped.hasRemaining()) {
+            channel.write(mapped);
+          }
+        } else {
+          transferFile(response.getBodyFile(), response.getBodyFileRangeStart(i),
+              response.getBodyFileRangeLength(i), channel);
         }
-        msg.setMessageBody(buffer);
       }
     }
   }
   
   
   /**
-   * Read the HTTP header into a map.
+   * Send part of a file to the client.
    * 
-   * @param is the input stream reader
-   * @param msg the request object
-   * @return a map of key/value pairs
-   * @throws IOException thrown when reading from the input stream
+   * @param file the file
+   * @param start the position of the first byte to send
+   * @param length the number of bytes to send
+   * @param channel the channel to write to
+   * @throws IOException thrown when reading the file or writing
    */
-  private void readHeader(final BufferedReader is, final Request msg) throws IOException {
-    
-    // Read the header until we hit null or an empty line
-    String line = is.readLine();
-    while ((line != null) && (!line.isEmpty())) {
-      
-      // Parse the key and value pair
-      final int index = line.indexOf(':');
-      if (index > 0) {
-        msg.addHeaderRow(line.substring(0, index), line.substring(index + 1).trim());
+  private static void transferFile(final File file, final long start, final long length,
+                                   final WritableByteChannel channel) throws IOException {
+    final FileRegion region = new FileRegion(file, start, length);
+    try {
+      while (region.hasRemaining()) {
+        region.transferTo(channel);
       }
-      
-      // Read the next line
-      line = is.readLine();
+    } finally {
+      region.close();
     }
   }
   
   
+  /**
+   * Encode the status line and header of the response.
+   * 
+   * @param response the response
+   * @param encoder the encoder
+   * @return the encoder's buffer holding the head, ready to be read
+   */
+  ByteBuffer encodeHead(final Response response, final ResponseEncoder encoder) {
+    
+    // If we need to include the MD5 value in the response do so now
+    if (cfg.shouldComputeMD5Response()) {
+      response.addMD5();
+    }
+    
+    return encoder.encodeHead(response);
+  }
+  
+  
   /**
    * Entry point for the application.
    * 
@@ -0,0 +1,35 @@
+package io.miti.shortstop.server;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class WorkerThreadFactory implements ThreadFactory {
+  
+  /** The prefix for the thread names. */
+  private final String prefix;
+  
+  /** The number of threads created so far. */
+  private final AtomicInteger count = new AtomicInteger(0);
+  
+  /**
+   * Constructor.
+   * 
+   * @param prefix the prefix for the thread names
+   */
+  public WorkerThreadFactory(final String prefix) {
+    this.prefix = prefix;
+  }
+  
+  /**
+   * Create a new thread.
+   * 
+   * @param task the task for the thread to run
+   * @return the new thread
+   */
+  @Override
+  public Thread newThread(final Runnable task) {
+    final Thread thread = new Thread(task, prefix + "-" + count.incrementAndGet());
+    thread.setDaemon(false);
+    return thread;
+  }
+}
@@ -0,0 +1,116 @@
+package io.miti.shortstop.util;
+
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+public final class ByteRanges {
+  
+  /** The most ranges we serve in one response; requests for more get the whole file. */
+  public static final int MAX_RANGES = 16;
+  
+  /** An empty array, for a request none of whose ranges can be satisfied. */
+  private static final long[] NONE = new long[0];
+  
+  /**
+   * Private default constructor.
+   */
+  private ByteRanges() {
+    super();
+  }
+  
+  /**
+   * Parse the Range header of a request (e.g., "bytes=0-499,-500")
+   * for a body of a given length.  Each range is returned as a pair
+   * of values, its first position and its length, in the order they
+   * were requested; ranges past the end of the body are dropped, and
+   * ranges that run past it are shortened.
+   * 
+   * @param header the Range header
+   * @param length the length of the body
+   * @return the ranges; an empty array if none can be satisfied (416);
+   *         or null if the header is invalid or asks for too many
+   *         ranges, and should be ignored
+   */
+  public static long[] parse(final String header, final long length) {
+    // Check for null
+    if ((header == null) || (header.length() < 6) ||
+        !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+      return null;
+    }
+    
+    final StringTokenizer st = new StringTokenizer(header.substring(6), ",");
+    final int count = st.countTokens();
+    if ((count == 0) || (count > MAX_RANGES)) {
+      return null;
+    }
+    
+    final long[] ranges = new long[count * 2];
+    int num = 0;
+    while (st.hasMoreTokens()) {
+      // Split the range at its dash
+      final String spec = st.nextToken().trim();
+      final int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      
+      final long first = parseLong(spec.substring(0, dash).trim());
+      final long last = parseLong(spec.substring(dash + 1).trim());
+      long start = 0L;
+      long end = 0L;
+      if (dash == 0) {
+        // A suffix (the last N bytes)
+        if (last < 0L) {
+          return null;
+        }
+        start = Math.max(0L, length - last);
+        end = length;
+      } else {
+        if ((first < 0L) || ((last >= 0L) && (last < first))
+            || ((last < 0L) && (dash < spec.length() - 1))) {
+          return null;
+        }
+        start = first;
+        end = (last < 0L) ? length : Math.min(length, last + 1L);
+      }
+      
+      // Keep the range if any of it is inside the body
+      if (start < end) {
+        ranges[num++] = start;
+        ranges[num++] = end - start;
+      }
+    }
+    
+    if (num == 0) {
+      return NONE;
+    }
+    
+    return (num == ranges.length) ? ranges : Arrays.copyOf(ranges, num);
+  }
+  
+  /**
+   * Parse a position in a range.
+   * 
+   * @param str the string
+   * @return the value, or -1 if it's empty or not a number
+   */
+  private static long parseLong(final String str) {
+    if (str.isEmpty()) {
+      return -1L;
+    }
+    
+    // Only digits are allowed (no signs)
+    for (int i = 0; i < str.length(); ++i) {
+      final char ch = str.charAt(i);
+      if ((ch < '0') || (ch > '9')) {
+        return -1L;
+      }
+    }
+    
+    try {
+      return Long.parseLong(str);
+    } catch (NumberFormatException nfe) {
+      return -1L;
+    }
+  }
+}
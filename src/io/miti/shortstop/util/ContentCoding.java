@@ -0,0 +1,113 @@
+package io.miti.shortstop.util;
+
+import java.util.Locale;
+import java.util.StringTokenizer;
+
+public enum ContentCoding {
+  IDENTITY(null, ""), GZIP("gzip", "-gz"), DEFLATE("deflate", "-df");
+  
+  /** The token used in Accept-Encoding and Content-Encoding. */
+  private final String token;
+  
+  /** The suffix added to an ETag, so each coding of a file has its own. */
+  private final String eTagSuffix;
+  
+  /**
+   * Constructor.
+   * 
+   * @param token the token for the coding
+   * @param eTagSuffix the suffix added to an ETag
+   */
+  private ContentCoding(final String token, final String eTagSuffix) {
+    this.token = token;
+    this.eTagSuffix = eTagSuffix;
+  }
+  
+  /**
+   * Return the token used in the Content-Encoding header.
+   * 
+   * @return the token, or null for the identity coding
+   */
+  public String getToken() {
+    return token;
+  }
+  
+  /**
+   * Return the suffix added to an ETag (inside its quotes).
+   * 
+   * @return the suffix, or an empty string for the identity coding
+   */
+  public String getETagSuffix() {
+    return eTagSuffix;
+  }
+  
+  /**
+   * Choose the coding to send, from a request's Accept-Encoding
+   * header.  The coding with the highest q-value is used, with gzip
+   * preferred over deflate when they're equal; a q-value of 0 means
+   * the coding isn't acceptable.  "*" matches codings not listed.
+   * 
+   * @param accept the Accept-Encoding header, or null
+   * @return the coding to use
+   */
+  public static ContentCoding negotiate(final String accept) {
+    // Check for null
+    if ((accept == null) || accept.isEmpty()) {
+      return IDENTITY;
+    }
+    
+    float gzip = -1.0f;
+    float deflate = -1.0f;
+    float any = -1.0f;
+    final StringTokenizer st = new StringTokenizer(accept, ",");
+    while (st.hasMoreTokens()) {
+      // Split the coding from its parameters
+      final String item = st.nextToken();
+      final int semi = item.indexOf(';');
+      final String name = ((semi < 0) ? item : item.substring(0, semi)).trim().toLowerCase(Locale.US);
+      final float q = (semi < 0) ? 1.0f : parseQuality(item.substring(semi + 1));
+      if (name.equals("gzip") || name.equals("x-gzip")) {
+        gzip = Math.max(gzip, q);
+      } else if (name.equals("deflate")) {
+        deflate = Math.max(deflate, q);
+      } else if (name.equals("*")) {
+        any = Math.max(any, q);
+      }
+    }
+    
+    // Codings that aren't listed get the value for "*"
+    if (gzip < 0.0f) {
+      gzip = any;
+    }
+    if (deflate < 0.0f) {
+      deflate = any;
+    }
+    
+    if ((gzip > 0.0f) && (gzip >= deflate)) {
+      return GZIP;
+    } else if (deflate > 0.0f) {
+      return DEFLATE;
+    }
+    
+    return IDENTITY;
+  }
+  
+  /**
+   * Parse the q-value from the parameters of a coding.
+   * 
+   * @param params the parameters (e.g., "q=0.5")
+   * @return the q-value, or 1 if it's missing or invalid
+   */
+  private static float parseQuality(final String params) {
+    final String str = params.trim();
+    if (!str.startsWith("q=") && !str.startsWith("Q=")) {
+      return 1.0f;
+    }
+    
+    try {
+      return Float.parseFloat(str.substring(2).trim());
+    } catch (NumberFormatException nfe) {
+      return 1.0f;
+    }
+  }
+}
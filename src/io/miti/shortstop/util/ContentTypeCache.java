@@ -1,5 +1,6 @@
 package io.miti.shortstop.util;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -10,7 +11,7 @@ public final class ContentTypeCache {
   private static final ContentTypeCache cache;
   
   /** The map of file extension to MIME type. */
-  private Map<String, String> map = null;
+  private final Map<String, String> map;
   
   static {
     /** Instantiate the class and populate the map. */
@@ -21,15 +22,17 @@ public final class ContentTypeCache {
    * Private default constructor.
    */
   private ContentTypeCache() {
-    populateMap();
+    map = Collections.unmodifiableMap(populateMap());
   }
   
   /**
    * Populate with some common file content types and their MIME types.
+   * 
+   * @return the populated map
    */
-  private void populateMap() {
+  private static Map<String, String> populateMap() {
     // Create the map
-    map = new HashMap<String, String>(10);
+    final Map<String, String> map = new HashMap<String, String>(10);
     
     // Populate with some values
     map.put("7z", "application/x-7z-compressed");
@@ -70,6 +73,8 @@ public final class ContentTypeCache {
     map.put("xml", "application/xml");
     map.put("yaml", "text/yaml");
     map.put("zip", "application/zip");
+    
+    return map;
   }
   
   /**
@@ -0,0 +1,120 @@
+package io.miti.shortstop.util;
+
+import java.nio.charset.StandardCharsets;
+
+public final class DefaultHeaders {
+  
+  /** The index of the Date header. */
+  public static final int DATE = 9;
+  
+  /** The number of default headers. */
+  public static final int COUNT = 10;
+  
+  /** The bit mask with every default header set. */
+  public static final int ALL = (1 << COUNT) - 1;
+  
+  /** The names of the default headers. */
+  private static final String[] NAMES = {
+    HeaderField.RES_CONTENT_TYPE,
+    HeaderField.RES_SERVER,
+    HeaderField.RES_CONTENT_LENGTH,
+    HeaderField.RES_CONNECTION,
+    HeaderField.RES_CACHE_CONTROL,
+    HeaderField.RES_PRAGMA,
+    HeaderField.RES_EXPIRES,
+    "X-Content-Type-Options",
+    "X-XSS-Protection",
+    HeaderField.RES_DATE
+  };
+  
+  /** The values of the default headers; the date is filled in when used. */
+  private static final String[] VALUES = {
+    ContentTypeCache.getCache().getContentTypeMIMEType("txt"),
+    "Shortstop Web Server 0.1",
+    "0",
+    "close",
+    "no-cache, no-store, max-age=0, must-revalidate",
+    "no-cache",
+    "0",
+    "nosniff",
+    "1; mode=block",
+    null
+  };
+  
+  /** The default headers, encoded; for the date, just the name and separator. */
+  private static final byte[][] LINES = new byte[COUNT][];
+  
+  static {
+    for (int i = 0; i < COUNT; ++i) {
+      final String line = (VALUES[i] == null) ? (NAMES[i] + ": ") : (NAMES[i] + ": " + VALUES[i] + "\r\n");
+      LINES[i] = line.getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+  
+  /**
+   * Default constructor.
+   */
+  private DefaultHeaders() {
+    super();
+  }
+  
+  /**
+   * Return the bit for a header, if it's one of the defaults.  The
+   * name is not case-sensitive.
+   * 
+   * @param name the header name
+   * @return the bit for the header, or zero if it's not a default header
+   */
+  public static int maskOf(final String name) {
+    for (int i = 0; i < COUNT; ++i) {
+      if (NAMES[i].equalsIgnoreCase(name)) {
+        return (1 << i);
+      }
+    }
+    
+    return 0;
+  }
+  
+  /**
+   * Return the name of a default header.
+   * 
+   * @param index the index of the header
+   * @return the header name
+   */
+  public static String getName(final int index) {
+    return NAMES[index];
+  }
+  
+  /**
+   * Return the value of a default header.
+   * 
+   * @param index the index of the header
+   * @return the header value
+   */
+  public static String getValue(final int index) {
+    return (VALUES[index] == null) ? HttpDate.now() : VALUES[index];
+  }
+  
+  /**
+   * Return a default header, encoded as it's sent, including the
+   * trailing CRLF.  For the date header, only the name and separator
+   * are included, since the value changes.  The array is shared, so
+   * it must not be changed.
+   * 
+   * @param index the index of the header
+   * @return the encoded header
+   */
+  public static byte[] getLine(final int index) {
+    return LINES[index];
+  }
+  
+  /**
+   * Return whether the value of a default header is the current date.
+   * 
+   * @param index the index of the header
+   * @return whether the header is a date
+   */
+  public static boolean isDate(final int index) {
+    return (VALUES[index] == null);
+  }
+}
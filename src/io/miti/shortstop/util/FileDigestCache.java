@@ -0,0 +1,110 @@
+package io.miti.shortstop.util;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class FileDigestCache {
+  
+  /** The most files we keep digests for. */
+  private static final int MAX_ENTRIES = 1024;
+  
+  /** The single instance of this class. */
+  private static final FileDigestCache cache;
+  
+  /** The map of file path to its digest. */
+  private final Map<String, Entry> map = new ConcurrentHashMap<String, Entry>(64);
+  
+  static {
+    /** Instantiate the class. */
+    cache = new FileDigestCache();
+  }
+  
+  /**
+   * The digest of a file, with the size and time it was computed for.
+   */
+  private static final class Entry {
+    
+    /** The length of the file. */
+    private final long length;
+    
+    /** The time the file was last modified. */
+    private final long lastModified;
+    
+    /** The base-64 MD5 hash of the file. */
+    private final String md5;
+    
+    /**
+     * Constructor.
+     * 
+     * @param length the length of the file
+     * @param lastModified the time the file was last modified
+     * @param md5 the base-64 MD5 hash of the file
+     */
+    private Entry(final long length, final long lastModified, final String md5) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.md5 = md5;
+    }
+  }
+  
+  /**
+   * Private default constructor.
+   */
+  private FileDigestCache() {
+    super();
+  }
+  
+  /**
+   * Return the MD5 hash (in base 64) of a file.  The file is only
+   * hashed again if its size or modification time has changed.
+   * 
+   * @param file the file
+   * @return the base-64 MD5 value for the file, or null on error
+   */
+  public String getMD5(final File file) {
+    final String key = file.getPath();
+    final long length = file.length();
+    final long lastModified = file.lastModified();
+    
+    // Use the cached value if the file hasn't changed
+    final Entry entry = map.get(key);
+    if ((entry != null) && (entry.length == length) && (entry.lastModified == lastModified)) {
+      return entry.md5;
+    }
+    
+    // Hash the file; if it changed while we read it, don't cache the result
+    final String md5 = Utility.getMD5(file);
+    if ((md5 != null) && (file.length() == length) && (file.lastModified() == lastModified)) {
+      makeRoom();
+      map.put(key, new Entry(length, lastModified, md5));
+    }
+    
+    return md5;
+  }
+  
+  /**
+   * Drop an entry if the cache is full.
+   */
+  private void makeRoom() {
+    if (map.size() < MAX_ENTRIES) {
+      return;
+    }
+    
+    final Iterator<String> keys = map.keySet().iterator();
+    if (keys.hasNext()) {
+      keys.next();
+      keys.remove();
+    }
+  }
+  
+  /**
+   * Get the single instance of this class.
+   * 
+   * @return the single instance of this class
+   */
+  public static FileDigestCache getCache() {
+    return cache;
+  }
+}
@@ -31,6 +31,7 @@ public final class HeaderField
   public static final String REQ_RANGE = "Range";
   public static final String REQ_REFERER = "Referer";
   public static final String REQ_TE = "TE";
+  public static final String REQ_TRANSFER_ENCODING = "Transfer-Encoding";
   public static final String REQ_USER_AGENT = "User-Agent";
   public static final String REQ_UPGRADE = "Upgrade";
   public static final String REQ_VIA = "Via";
@@ -55,6 +56,7 @@ public final class HeaderField
   public static final String RES_DATE = "Date";
   public static final String RES_ETAG = "ETag";
   public static final String RES_EXPIRES = "Expires";
+  public static final String RES_KEEP_ALIVE = "Keep-Alive";
   public static final String RES_LAST_MODIFIED = "Last-Modified";
   public static final String RES_LINK = "Link";
   public static final String RES_LOCATION = "Location";
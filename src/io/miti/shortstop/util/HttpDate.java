@@ -0,0 +1,117 @@
+package io.miti.shortstop.util;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+public final class HttpDate {
+  
+  /** The format of dates in HTTP headers (e.g., "Sun, 06 Nov 1994 08:49:37 GMT"). */
+  private static final DateTimeFormatter FORMAT =
+      DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+  
+  /** The current date, formatted; replaced when the second changes. */
+  private static volatile Stamp current = new Stamp(System.currentTimeMillis() / 1000L);
+  
+  /**
+   * The date for one second, as a string and as bytes.
+   */
+  private static final class Stamp {
+    
+    /** The time, in seconds since the epoch. */
+    private final long second;
+    
+    /** The formatted date. */
+    private final String text;
+    
+    /** The formatted date, as US-ASCII bytes. */
+    private final byte[] bytes;
+    
+    /**
+     * Constructor.
+     * 
+     * @param second the time, in seconds since the epoch
+     */
+    private Stamp(final long second) {
+      this.second = second;
+      text = format(second * 1000L);
+      bytes = text.getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+  
+  /**
+   * Default constructor.
+   */
+  private HttpDate() {
+    super();
+  }
+  
+  /**
+   * Return the current date, formatted, and make a new one if the
+   * second has changed.  Threads that race to do so just format the
+   * same date.
+   * 
+   * @return the current date
+   */
+  private static Stamp stamp() {
+    final long second = System.currentTimeMillis() / 1000L;
+    Stamp stamp = current;
+    if (stamp.second != second) {
+      stamp = new Stamp(second);
+      current = stamp;
+    }
+    
+    return stamp;
+  }
+  
+  /**
+   * Return the current date as it appears in an HTTP header.  The
+   * string is only formatted once per second.
+   * 
+   * @return the current date
+   */
+  public static String now() {
+    return stamp().text;
+  }
+  
+  /**
+   * Return the current date as it appears in an HTTP header, as
+   * bytes.  The array is shared, so it must not be changed.
+   * 
+   * @return the current date, as US-ASCII bytes
+   */
+  public static byte[] nowBytes() {
+    return stamp().bytes;
+  }
+  
+  /**
+   * Parse a date from an HTTP header (e.g., If-Modified-Since).
+   * 
+   * @param value the header value
+   * @return the time, in milliseconds since the epoch, or -1 if it isn't a valid date
+   */
+  public static long parse(final String value) {
+    if (value == null) {
+      return -1L;
+    }
+    
+    try {
+      return Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(value.trim())).toEpochMilli();
+    } catch (DateTimeException e) {
+      return -1L;
+    }
+  }
+  
+  /**
+   * Format a time as it appears in an HTTP header.
+   * 
+   * @param millis the time, in milliseconds since the epoch
+   * @return the formatted date
+   */
+  public static String format(final long millis) {
+    return FORMAT.format(Instant.ofEpochMilli(millis));
+  }
+}
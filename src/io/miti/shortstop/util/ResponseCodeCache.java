@@ -1,15 +1,26 @@
 package io.miti.shortstop.util;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 public final class ResponseCodeCache {
   
+  /** The codes below this are also kept in arrays. */
+  private static final int MAX_CODE = 600;
+  
   /** The single instance of this class. */
   private static final ResponseCodeCache cache;
   
   /** The map of response code to description. */
-  private Map<Integer, String> map = null;
+  private final Map<Integer, String> map;
+  
+  /** The description for each code below MAX_CODE, by code, so lookups don't box. */
+  private final String[] messages = new String[MAX_CODE];
+  
+  /** The encoded status line for each code below MAX_CODE (e.g., "HTTP/1.1 200 OK\r\n"). */
+  private final byte[][] statusLines = new byte[MAX_CODE][];
   
   static {
     /** Instantiate the class and populate the map. */
@@ -20,15 +31,26 @@ public final class ResponseCodeCache {
    * Private default constructor.
    */
   private ResponseCodeCache() {
-    populateMap();
+    map = Collections.unmodifiableMap(populateMap());
+    
+    // Index the descriptions and encode the status lines
+    for (Map.Entry<Integer, String> entry : map.entrySet()) {
+      final int code = entry.getKey().intValue();
+      if ((code >= 0) && (code < MAX_CODE)) {
+        messages[code] = entry.getValue();
+        statusLines[code] = ("HTTP/1.1 " + code + " " + entry.getValue() + "\r\n").getBytes(StandardCharsets.UTF_8);
+      }
+    }
   }
   
   /**
    * Populate with some response codes and their description.
+   * 
+   * @return the populated map
    */
-  private void populateMap() {
+  private static Map<Integer, String> populateMap() {
     // Create the map
-    map = new HashMap<Integer, String>(80);
+    final Map<Integer, String> map = new HashMap<Integer, String>(80);
     
     // Populate with some values
     map.put(Integer.valueOf(100), "Continue");
@@ -109,6 +131,8 @@ public final class ResponseCodeCache {
     map.put(Integer.valueOf(522), "Origin Connection Time-out");
     map.put(Integer.valueOf(598), "Network read timeout error");
     map.put(Integer.valueOf(599), "Network connect timeout error");
+    
+    return map;
   }
   
   /**
@@ -128,10 +152,30 @@ public final class ResponseCodeCache {
    * @return the corresponding response description
    */
   public String getResponseMessage(final int key) {
+    if ((key >= 0) && (key < MAX_CODE)) {
+      return messages[key];
+    }
+    
     final String str = map.get(Integer.valueOf(key));
     return str;
   }
   
+  /**
+   * Return the encoded status line for a code, if the message is the
+   * standard description.  The array is shared, so it must not be changed.
+   * 
+   * @param key the response code
+   * @param message the status message
+   * @return the status line, including the CRLF, or null if there isn't one
+   */
+  public byte[] getStatusLine(final int key, final String message) {
+    if ((key < 0) || (key >= MAX_CODE) || (messages[key] == null) || !messages[key].equals(message)) {
+      return null;
+    }
+    
+    return statusLines[key];
+  }
+  
   /**
    * Get the single instance of this class.
    * 
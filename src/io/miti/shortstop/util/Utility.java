@@ -1,11 +1,20 @@
 package io.miti.shortstop.util;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public final class Utility
 {
+  /** Each thread's MD5 digest, so one isn't looked up for every hash. */
+  private static final ThreadLocal<MessageDigest> md5Digest =
+      ThreadLocal.withInitial(Utility::newMD5Digest);
+  
   private Utility() {
     super();
   }
@@ -57,7 +66,8 @@ public final class Utility
       return defaultValue;
     }
     
-    final boolean val = ((str.equals("true")) ? true : defaultValue);
+    final boolean val = ((str.equals("true")) ? true :
+                         ((str.equals("false")) ? false : defaultValue));
     return val;
   }
   
@@ -69,21 +79,113 @@ public final class Utility
    */
   public static String getMD5(final byte[] str) {
     
+    // Get the MD5 hash
+    final MessageDigest md = getMD5Digest();
+    if (md == null) {
+      return null;
+    }
+    md.update(str);
+    
+    return encodeDigest(md);
+  }
+  
+  /**
+   * Compute the MD5 hash (in base 64) for the bytes remaining in a
+   * buffer.  The buffer's position is not changed, and the bytes are
+   * read in place (a read-only buffer is read in small blocks).
+   * 
+   * @param buffer the bytes to hash
+   * @return the MD5 hash in base 64
+   */
+  public static String getMD5(final ByteBuffer buffer) {
+    
+    // Get the MD5 hash
+    final MessageDigest md = getMD5Digest();
+    if (md == null) {
+      return null;
+    }
+    md.update(buffer.duplicate());
+    
+    return encodeDigest(md);
+  }
+  
+  /**
+   * Compute the MD5 hash (in base 64) for the contents of a file,
+   * reading it in small blocks.  The result isn't cached; see
+   * FileDigestCache for that.
+   * 
+   * @param file the file
+   * @return the base-64 MD5 value for the file, or null on error
+   */
+  public static String getMD5(final File file) {
+    
+    // Get the MD5 hash
+    final MessageDigest md = getMD5Digest();
+    if (md == null) {
+      return null;
+    }
+    
     String md5 = null;
-    try {
-      // Get the MD5 hash
-      final MessageDigest md = MessageDigest.getInstance("MD5");
-      final byte[] digest = md.digest(str);
-      
-      // Encode the bytes as base-64
-      final byte[] encoded = java.util.Base64.getEncoder().encode(digest);
+    try (InputStream is = new FileInputStream(file)) {
+      final byte[] block = new byte[8192];
+      int numRead = is.read(block);
+      while (numRead >= 0) {
+        md.update(block, 0, numRead);
+        numRead = is.read(block);
+      }
       
-      // Convert to a string
-      md5 = new String(encoded, StandardCharsets.UTF_8);
-    } catch (NoSuchAlgorithmException e) {
+      md5 = encodeDigest(md);
+    } catch (IOException e) {
       System.out.println("Exception computing MD5: " + e.getMessage());
     }
     
     return md5;
   }
+  
+  /**
+   * Return this thread's MD5 digest, reset and ready to use.  The
+   * digest must not be used by anything else until it's finished
+   * with, so don't keep it across calls that might hash something.
+   * 
+   * @return the digest, or null if MD5 is not available
+   */
+  public static MessageDigest getMD5Digest() {
+    final MessageDigest md = md5Digest.get();
+    if (md != null) {
+      md.reset();
+    }
+    
+    return md;
+  }
+  
+  /**
+   * Return a new MD5 digest, for an object that hashes data as it
+   * arrives, such as a connection's request decoder.
+   * 
+   * @return the digest, or null if MD5 is not available
+   */
+  public static MessageDigest newMD5Digest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      System.out.println("Exception computing MD5: " + e.getMessage());
+      return null;
+    }
+  }
+  
+  /**
+   * Finish a digest and return its value in base 64.  The digest is
+   * reset.
+   * 
+   * @param md the digest
+   * @return the base-64 digest value
+   */
+  public static String encodeDigest(final MessageDigest md) {
+    // Encode the bytes as base-64
+    final byte[] encoded = java.util.Base64.getEncoder().encode(md.digest());
+    
+    // Convert to a string
+    return new String(encoded, StandardCharsets.UTF_8);
+  }
+
 }
@@ -0,0 +1,573 @@
+package io.miti.shortstop.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.miti.shortstop.model.Config;
+import io.miti.shortstop.util.Utility;
+
+public final class ServerTest {
+  
+  /** The first port a server is started on; each mode uses the next one. */
+  private static final int BASE_PORT = 18_181;
+  
+  /** The modes the tests are run in. */
+  private static final String[] MODES = {"pool", "nio"};
+  
+  /** The contents of the file that is downloaded. */
+  private static final String FILE_BODY = "Shortstop serves this file for the tests.\n";
+  
+  /** The name of the file that is downloaded. */
+  private static final String FILE_NAME = "hello.txt";
+  
+  /** How long to wait for a response, in milliseconds. */
+  private static final int READ_TIMEOUT = 5_000;
+  
+  /** The port of the server being tested. */
+  private int port = 0;
+  
+  /** The number of checks that passed. */
+  private int passed = 0;
+  
+  /** The number of checks that failed. */
+  private int failed = 0;
+  
+  /**
+   * Default constructor.
+   */
+  private ServerTest() {
+    super();
+  }
+  
+  /**
+   * A response read from the server.
+   */
+  private static final class Reply {
+    
+    /** The status code. */
+    private int status = 0;
+    
+    /** The headers, with lower-case names. */
+    private final Map<String, String> headers = new HashMap<String, String>(16);
+    
+    /** The body. */
+    private byte[] body = new byte[0];
+    
+    /**
+     * Return a header value.
+     * 
+     * @param name the header name, in lower case
+     * @return the value, or null
+     */
+    private String header(final String name) {
+      return headers.get(name);
+    }
+    
+    /**
+     * Return the body as a string.
+     * 
+     * @return the body
+     */
+    private String text() {
+      return new String(body, StandardCharsets.ISO_8859_1);
+    }
+  }
+  
+  /**
+   * A connection to the server.
+   */
+  private final class Client implements AutoCloseable {
+    
+    /** The socket. */
+    private final Socket socket = new Socket();
+    
+    /** Reads the responses. */
+    private final InputStream in;
+    
+    /** Sends the requests. */
+    private final OutputStream out;
+    
+    /**
+     * Open a connection to the server.
+     * 
+     * @throws IOException if the connection fails
+     */
+    private Client() throws IOException {
+      socket.connect(new InetSocketAddress("127.0.0.1", port), READ_TIMEOUT);
+      socket.setSoTimeout(READ_TIMEOUT);
+      in = new BufferedInputStream(socket.getInputStream());
+      out = socket.getOutputStream();
+    }
+    
+    /**
+     * Send requests, all in one write so they're pipelined.
+     * 
+     * @param requests the requests
+     * @throws IOException if writing fails
+     */
+    private void send(final String requests) throws IOException {
+      out.write(requests.getBytes(StandardCharsets.ISO_8859_1));
+      out.flush();
+    }
+    
+    /**
+     * Read a response.
+     * 
+     * @param hasBody whether the response can have a body (false for HEAD)
+     * @return the response
+     * @throws IOException if reading fails, or the response is invalid
+     */
+    private Reply read(final boolean hasBody) throws IOException {
+      final Reply reply = new Reply();
+      final String statusLine = readLine();
+      if (!statusLine.startsWith("HTTP/1.") || (statusLine.length() < 12)) {
+        throw new IOException("Invalid status line: " + statusLine);
+      }
+      reply.status = Integer.parseInt(statusLine.substring(9, 12));
+      
+      for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+        final int colon = line.indexOf(':');
+        if (colon > 0) {
+          reply.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+              line.substring(colon + 1).trim());
+        }
+      }
+      
+      // Read the body the headers describe; 1xx, 204 and 304 never have one
+      final boolean noBody = !hasBody || (reply.status < 200) || (reply.status == 204)
+          || (reply.status == 304);
+      final String length = reply.header("content-length");
+      if (noBody) {
+        return reply;
+      } else if ("chunked".equalsIgnoreCase(reply.header("transfer-encoding"))) {
+        reply.body = readChunked();
+      } else if (length != null) {
+        reply.body = readFully(Integer.parseInt(length));
+      }
+      
+      return reply;
+    }
+    
+    /**
+     * Read a chunked body.
+     * 
+     * @return the body
+     * @throws IOException if reading fails
+     */
+    private byte[] readChunked() throws IOException {
+      final ByteArrayOutputStream body = new ByteArrayOutputStream();
+      while (true) {
+        final int size = Integer.parseInt(readLine().trim(), 16);
+        if (size == 0) {
+          readLine();
+          return body.toByteArray();
+        }
+        body.write(readFully(size));
+        readLine();
+      }
+    }
+    
+    /**
+     * Read a number of bytes.
+     * 
+     * @param length the number of bytes
+     * @return the bytes
+     * @throws IOException if reading fails, or the connection is closed
+     */
+    private byte[] readFully(final int length) throws IOException {
+      final byte[] data = new byte[length];
+      int total = 0;
+      while (total < length) {
+        final int num = in.read(data, total, length - total);
+        if (num < 0) {
+          throw new IOException("The connection closed in the body");
+        }
+        total += num;
+      }
+      
+      return data;
+    }
+    
+    /**
+     * Read a line, without the line ending.
+     * 
+     * @return the line
+     * @throws IOException if reading fails, or the connection is closed
+     */
+    private String readLine() throws IOException {
+      final StringBuilder sb = new StringBuilder(80);
+      int ch = in.read();
+      while (ch != '\n') {
+        if (ch < 0) {
+          throw new IOException("The connection was closed");
+        } else if (ch != '\r') {
+          sb.append((char) ch);
+        }
+        ch = in.read();
+      }
+      
+      return sb.toString();
+    }
+    
+    /**
+     * Return whether the server closed the connection, with nothing
+     * more sent.
+     * 
+     * @return whether the connection is closed
+     * @throws IOException if reading fails
+     */
+    private boolean isClosed() throws IOException {
+      try {
+        return (in.read() < 0);
+      } catch (SocketTimeoutException ste) {
+        return false;
+      } catch (IOException ioe) {
+        // A reset also means the server closed the connection
+        return true;
+      }
+    }
+    
+    /**
+     * Return whether the server closed the connection normally, with
+     * nothing more sent, instead of resetting it.
+     * 
+     * @return whether the connection is closed without a reset
+     */
+    private boolean isClosedCleanly() {
+      try {
+        return (in.read() < 0);
+      } catch (IOException ioe) {
+        return false;
+      }
+    }
+    
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+  
+  /**
+   * Record the result of a check.
+   * 
+   * @param ok whether the check passed
+   * @param what what was checked
+   */
+  private void check(final boolean ok, final String what) {
+    if (ok) {
+      ++passed;
+    } else {
+      ++failed;
+      System.out.println("FAILED: " + what);
+    }
+  }
+  
+  /**
+   * Pipelined requests on a kept-alive connection are all answered,
+   * in order, and the connection stays open for more.
+   * 
+   * @throws IOException if the connection fails
+   */
+  private void testKeepAlivePipelining() throws IOException {
+    try (Client client = new Client()) {
+      client.send("GET /api/sum HTTP/1.1\r\nHost: localhost\r\n\r\n"
+          + "GET /" + FILE_NAME + " HTTP/1.1\r\nHost: localhost\r\n\r\n"
+          + "GET /api/3/4 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      final Reply first = client.read(true);
+      final Reply second = client.read(true);
+      final Reply third = client.read(true);
+      check(first.status == 200, "pipelining: first response is 200");
+      check("keep-alive".equals(first.header("connection")), "pipelining: connection is kept alive");
+      check((second.status == 200) && second.text().equals(FILE_BODY), "pipelining: second response is the file");
+      check((third.status == 200) && third.text().contains("34"), "pipelining: third response is the handler's");
+      
+      client.send("GET /api/sum HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      check(client.read(true).status == 200, "pipelining: the connection is still open");
+    }
+  }
+  
+  /**
+   * In the pool mode, connections are only kept alive while enough
+   * workers are left for new ones: with 4 workers, 3 connections can
+   * wait for another request, and the next one is closed.
+   * 
+   * @throws IOException if the connection fails
+   */
+  private void testKeepAliveLimit() throws IOException {
+    // Let the workers for the earlier tests' connections finish
+    try {
+      Thread.sleep(200L);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+    
+    final Client[] clients = new Client[4];
+    try {
+      for (int i = 0; i < clients.length; ++i) {
+        clients[i] = new Client();
+        clients[i].send("GET /api/sum HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        final String expected = (i < 3) ? "keep-alive" : "close";
+        check(expected.equals(clients[i].read(true).header("connection")),
+            "keep-alive limit: connection " + (i + 1) + " is " + expected);
+      }
+    } finally {
+      for (Client client : clients) {
+        if (client != null) {
+          client.close();
+        }
+      }
+    }
+  }
+  
+  /**
+   * A HEAD response has the Content-Length a GET would, and no body,
+   * so the response after it on the connection is read correctly.
+   * 
+   * @throws IOException if the connection fails
+   */
+  private void testHead() throws IOException {
+    try (Client client = new Client()) {
+      client.send("HEAD /" + FILE_NAME + " HTTP/1.1\r\nHost: localhost\r\n\r\n"
+          + "GET /api/sum HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      final Reply head = client.read(false);
+      final Reply next = client.read(true);
+      check(head.status == 200, "HEAD: status is 200");
+      check(Integer.toString(FILE_BODY.length()).equals(head.header("content-length")),
+          "HEAD: Content-Length is the file's length");
+      check((next.status == 200) && next.text().startsWith("{"), "HEAD: no body is sent before the next response");
+    }
+  }
+  
+  /**
+   * A request with Transfer-Encoding is rejected and the connection
+   * is closed, so its body is never read as another request.
+   * 
+   * @throws IOException if the connection fails
+   */
+  private void testChunkedRequestRejected() throws IOException {
+    try (Client client = new Client()) {
+      client.send("POST /api/sum HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+          + "2e\r\nGET /api/sum HTTP/1.1\r\nHost: localhost\r\n\r\n\r\n0\r\n\r\n");
+      final Reply reply = client.read(true);
+      check(reply.status == 501, "chunked request: status is 501");
+      check("close".equals(reply.header("connection")), "chunked request: Connection is close");
+      check(client.isClosed(), "chunked request: the connection is closed");
+    }
+    
+    try (Client client = new Client()) {
+      client.send("POST /api/sum HTTP/1.1\r\nHost: localhost\r\nContent-Length: 0\r\n"
+          + "Content-Length: 5\r\n\r\nhello");
+      check(client.read(true).status == 400, "repeated Content-Length: status is 400");
+      check(client.isClosed(), "repeated Content-Length: the connection is closed");
+    }
+    
+    try (Client client = new Client()) {
+      client.send("POST /api/sum HTTP/1.1\r\nHost: localhost\r\nContent-Length: 4096\r\n\r\n");
+      check(client.read(true).status == 413, "large body: status is 413");
+      check(client.isClosed(), "large body: the connection is closed");
+    }
+    
+    // The server reads what's still being sent of a large body before
+    // closing, so the connection isn't reset before the 413 is read
+    try (Client client = new Client()) {
+      final int length = 512 * 1024;
+      client.send("POST /api/sum HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + length + "\r\n\r\n");
+      final AtomicBoolean sent = new AtomicBoolean(false);
+      final Thread sender = new Thread(() -> {
+        try {
+          final byte[] piece = new byte[16 * 1024];
+          for (int i = 0; i < length; i += piece.length) {
+            client.out.write(piece);
+          }
+          sent.set(true);
+        } catch (IOException e) {
+          // The server reset the connection
+        }
+      });
+      sender.start();
+      try {
+        // Give the server time to close, as a client on a slow link would
+        Thread.sleep(500L);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      check(client.read(true).status == 413, "large body sent: status is 413");
+      try {
+        sender.join(READ_TIMEOUT);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      check(sent.get(), "large body sent: the whole body was sent");
+      client.socket.shutdownOutput();
+      check(client.isClosedCleanly(), "large body sent: the connection is closed without a reset");
+    }
+  }
+  
+  /**
+   * A body with a Content-MD5 header is checked against the header,
+   * and one that doesn't match gets a 400.
+   * 
+   * @throws IOException if the connection fails
+   */
+  private void testContentMD5() throws IOException {
+    final String md5 = Utility.getMD5("hello".getBytes(StandardCharsets.ISO_8859_1));
+    try (Client client = new Client()) {
+      client.send("GET /api/sum HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n"
+          + "Content-MD5: " + md5 + "\r\n\r\nhello"
+          + "GET /api/sum HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n"
+          + "Content-MD5: " + md5 + "\r\n\r\njello");
+      check(client.read(true).status == 200, "Content-MD5: a matching body gets 200");
+      check(client.read(true).status == 400, "Content-MD5: a different body gets 400");
+    }
+  }
+  
+  /**
+   * A conditional GET with the current ETag gets a 304 with no body.
+   * 
+   * @throws IOException if the connection fails
+   */
+  private void testNotModified() throws IOException {
+    try (Client client = new Client()) {
+      client.send("GET /" + FILE_NAME + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      final Reply full = client.read(true);
+      final String etag = full.header("etag");
+      check((full.status == 200) && (etag != null), "304: the file has an ETag");
+      
+      client.send("GET /" + FILE_NAME + " HTTP/1.1\r\nHost: localhost\r\nIf-None-Match: " + etag + "\r\n\r\n"
+          + "GET /api/sum HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      final Reply cached = client.read(true);
+      final Reply next = client.read(true);
+      check(cached.status == 304, "304: a matching If-None-Match gets 304");
+      check((next.status == 200) && next.text().startsWith("{"), "304: no body is sent before the next response");
+    }
+  }
+  
+  /**
+   * A satisfiable range gets a 206 with just those bytes, and one
+   * past the end of the file gets a 416.
+   * 
+   * @throws IOException if the connection fails
+   */
+  private void testRanges() throws IOException {
+    final int length = FILE_BODY.length();
+    try (Client client = new Client()) {
+      client.send("GET /" + FILE_NAME + " HTTP/1.1\r\nHost: localhost\r\nRange: bytes=0-8\r\n\r\n"
+          + "GET /" + FILE_NAME + " HTTP/1.1\r\nHost: localhost\r\nRange: bytes=1000-2000\r\n\r\n"
+          + "GET /api/sum HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      final Reply partial = client.read(true);
+      final Reply unsatisfiable = client.read(true);
+      final Reply next = client.read(true);
+      check(partial.status == 206, "206: status is 206");
+      check(("bytes 0-8/" + length).equals(partial.header("content-range")), "206: Content-Range is set");
+      check(partial.text().equals(FILE_BODY.substring(0, 9)), "206: the body is the range");
+      check(unsatisfiable.status == 416, "416: status is 416");
+      check(("bytes */" + length).equals(unsatisfiable.header("content-range")), "416: Content-Range has the length");
+      check(next.status == 200, "416: the connection is still usable");
+    }
+  }
+  
+  /**
+   * Start a server in a mode, and wait until it accepts connections.
+   * 
+   * @param mode the execution mode
+   * @param dir the directory files are downloaded from
+   * @return whether the server started
+   */
+  private boolean startServer(final String mode, final File dir) {
+    final Properties props = new Properties();
+    props.setProperty("http.port", Integer.toString(port));
+    props.setProperty("server.mode", mode);
+    props.setProperty("worker.pool.size", "4");
+    props.setProperty("nio.selector.threads", "2");
+    props.setProperty("file.download.allowed", "true");
+    props.setProperty("file.extensions.filter", "txt");
+    props.setProperty("file.directory", dir.getPath());
+    props.setProperty("request.max.body.kb", "1");
+    
+    final Thread thread = new Thread(new Shortstop(new Config(props))::startServer, "shortstop-" + mode);
+    thread.setDaemon(true);
+    thread.start();
+    
+    final long deadline = System.currentTimeMillis() + 10_000L;
+    while (System.currentTimeMillis() < deadline) {
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+        return true;
+      } catch (IOException ioe) {
+        try {
+          Thread.sleep(100L);
+        } catch (InterruptedException ie) {
+          return false;
+        }
+      }
+    }
+    
+    return false;
+  }
+  
+  /**
+   * Run the tests against a server in each mode.
+   * 
+   * @param dir the directory files are downloaded from
+   */
+  private void run(final File dir) {
+    for (int i = 0; i < MODES.length; ++i) {
+      port = BASE_PORT + i;
+      if (!startServer(MODES[i], dir)) {
+        check(false, MODES[i] + ": the server did not start on port " + port);
+        continue;
+      }
+      
+      final int before = failed;
+      try {
+        testKeepAlivePipelining();
+        testHead();
+        testChunkedRequestRejected();
+        testContentMD5();
+        testNotModified();
+        testRanges();
+        if (MODES[i].equals("pool")) {
+          testKeepAliveLimit();
+        }
+      } catch (IOException | RuntimeException e) {
+        check(false, MODES[i] + ": " + e);
+      }
+      System.out.println(String.format("%s mode: %d failures", MODES[i], failed - before));
+    }
+  }
+  
+  /**
+   * Entry point for the tests.  The exit code is 1 if any fail.
+   * 
+   * @param args arguments to the program (not used)
+   * @throws IOException if the file to download cannot be written
+   */
+  public static void main(final String[] args) throws IOException {
+    // Create the file that is downloaded
+    final File dir = Files.createTempDirectory("shortstop-test").toFile();
+    final File file = new File(dir, FILE_NAME);
+    Files.write(file.toPath(), FILE_BODY.getBytes(StandardCharsets.ISO_8859_1));
+    file.deleteOnExit();
+    dir.deleteOnExit();
+    
+    Registrar.registerHandlers();
+    final ServerTest test = new ServerTest();
+    test.run(dir);
+    System.out.println(String.format("%d checks passed, %d failed", test.passed, test.failed));
+    System.exit((test.failed == 0) ? 0 : 1);
+  }
+}